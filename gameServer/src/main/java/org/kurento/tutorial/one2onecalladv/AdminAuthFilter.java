@@ -0,0 +1,79 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//-----------------------------------------------------------------------------
+// Guards /admin/*, where operators can drain (and so stop) the server, run
+// tournaments and read raw signaling. With -Dadmin.secret set, requests must
+// carry it in the X-Admin-Secret header; without it, only requests from the
+// loopback interface are served. The readiness probe stays open so that
+// load balancers can poll it.
+//-----------------------------------------------------------------------------
+public class AdminAuthFilter implements Filter {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(AdminAuthFilter.class);
+
+	final static String PATH = "/admin/";
+	final static String HEADER = "X-Admin-Secret";
+	final static String OPEN_PATH = PATH + "ready";
+
+	private final String secret = System.getProperty("admin.secret");
+
+	@Override
+	public void init(FilterConfig config) {
+		if (secret == null || secret.isEmpty()) {
+			log.info("No admin.secret set: {} only served to localhost", PATH);
+		}
+	}
+
+	@Override
+	public void doFilter(ServletRequest req, ServletResponse res,
+			FilterChain chain) throws IOException, ServletException {
+		HttpServletRequest request = (HttpServletRequest) req;
+		String path = request.getRequestURI().substring(
+				request.getContextPath().length());
+		if (path.equals(OPEN_PATH) || isAuthorized(request)) {
+			chain.doFilter(req, res);
+			return;
+		}
+		log.warn("Refused {} {} from {}", request.getMethod(), path,
+				request.getRemoteAddr());
+		((HttpServletResponse) res).sendError(HttpServletResponse.SC_FORBIDDEN);
+	}
+
+	private boolean isAuthorized(HttpServletRequest request) {
+		if (secret != null && !secret.isEmpty()) {
+			String presented = request.getHeader(HEADER);
+			return presented != null
+					&& MessageDigest.isEqual(
+							secret.getBytes(StandardCharsets.UTF_8),
+							presented.getBytes(StandardCharsets.UTF_8));
+		}
+		try {
+			return InetAddress.getByName(request.getRemoteAddr())
+					.isLoopbackAddress();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public void destroy() {
+	}
+}
@@ -0,0 +1,244 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+//-----------------------------------------------------------------------------
+// HTTP endpoints for operators. Each method returns a small JSON object
+// with the current metrics of one server component.
+// Access is restricted by AdminAuthFilter.
+//-----------------------------------------------------------------------------
+@RestController
+@RequestMapping("/admin")
+public class AdminController {
+
+	@Autowired
+	private HeartbeatMonitor heartbeat;
+
+	@Autowired
+	private RateLimiter rateLimiter;
+
+	@Autowired
+	private SpectatorManager spectators;
+
+	@Autowired
+	private GameAnalytics analytics;
+
+	@Autowired
+	private ProtocolTrace trace;
+
+	@Autowired
+	private UserRegistry registry;
+
+	@Autowired
+	private KurentoConnector kms;
+
+	@Autowired
+	private DrainManager drain;
+
+	@Autowired
+	private ClusterNode cluster;
+
+	@Autowired
+	private CallSetupTracer setupTracer;
+
+	@Autowired
+	private CallQualityMonitor quality;
+
+	@Autowired
+	private RecordingCostMeter recordingCost;
+
+	@Autowired
+	private TournamentScheduler tournament;
+
+	//-------------------------------------------------------------------------
+	// Readiness probe for load balancers: 200 once the media server is
+	// connected, 503 while it is not. Signaling is up whenever this answers.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/ready")
+	public ResponseEntity<Map<String, Object>> ready() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("kmsUri", kms.getUri());
+		status.put("kmsReady", kms.isReady());
+		return new ResponseEntity<Map<String, Object>>(status,
+				kms.isReady() ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE);
+	}
+
+	//-------------------------------------------------------------------------
+	// Open sessions, dead-connection evictions and detection latency (time
+	// from the last frame received to eviction).
+	//-------------------------------------------------------------------------
+	@RequestMapping("/heartbeat")
+	public Map<String, Object> heartbeat() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("intervalMs", heartbeat.getIntervalMs());
+		stats.put("timeoutMs", heartbeat.getTimeoutMs());
+		stats.put("sessions", heartbeat.getSessionCount());
+		stats.put("evictions", heartbeat.getEvictions());
+		stats.put("skippedPings", heartbeat.getSkippedPings());
+		stats.put("avgDetectionMs", heartbeat.getAverageDetectionMs());
+		stats.put("maxDetectionMs", heartbeat.getMaxDetectionMs());
+		return stats;
+	}
+
+	//-------------------------------------------------------------------------
+	// Messages dropped and sessions closed by flood protection.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/ratelimit")
+	public Map<String, Object> rateLimit() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("maxFrameBytes", rateLimiter.getMaxFrameBytes());
+		stats.put("dropped", rateLimiter.getDropped());
+		stats.put("closed", rateLimiter.getClosed());
+		return stats;
+	}
+
+	//-------------------------------------------------------------------------
+	// Live spectators, total attached, requests refused by the cap and
+	// requests refused for a missing or wrong observer token.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/spectators")
+	public Map<String, Object> spectators() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("maxPerMatch", spectators.getMaxPerMatch());
+		stats.put("active", spectators.getActive());
+		stats.put("total", spectators.getTotal());
+		stats.put("rejected", spectators.getRejected());
+		stats.put("unauthorized", spectators.getUnauthorized());
+		return stats;
+	}
+
+	//-------------------------------------------------------------------------
+	// Running game outcome statistics (see GameAnalytics).
+	//-------------------------------------------------------------------------
+	@RequestMapping("/analytics")
+	public Map<String, Object> analytics() {
+		return analytics.snapshot();
+	}
+
+	//-------------------------------------------------------------------------
+	// Protocol flight recorder contents, oldest first. With ?user=<name> only
+	// the traffic of that user's match (the user and its peer) is returned.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/trace")
+	public List<Map<String, Object>> trace(
+			@RequestParam(value = "user", required = false) String user) {
+		if (user == null) {
+			return trace.dump(null);
+		}
+		UserSession session = registry.getByName(user);
+		if (session == null) {
+			return Collections.emptyList();
+		}
+		return trace.dump(registry.getMatchSessionIds(session));
+	}
+
+	//-------------------------------------------------------------------------
+	// POST starts draining the server for shutdown; GET reports progress.
+	//-------------------------------------------------------------------------
+	@RequestMapping(value = "/drain", method = RequestMethod.POST)
+	public Map<String, Object> startDrain() {
+		drain.start();
+		return drainStatus();
+	}
+
+	@RequestMapping(value = "/drain", method = RequestMethod.GET)
+	public Map<String, Object> drainStatus() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("draining", drain.isDraining());
+		stats.put("elapsedSec", drain.getElapsedSec());
+		stats.put("deadlineSec", drain.getDeadlineSec());
+		stats.put("activeMatches", drain.getActiveMatches());
+		stats.put("refused", drain.getRefused());
+		return stats;
+	}
+
+	//-------------------------------------------------------------------------
+	// Cluster membership and signaling currently forwarded between nodes.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/cluster")
+	public Map<String, Object> cluster() {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("enabled", cluster.isEnabled());
+		stats.put("nodeUrl", cluster.getNodeUrl());
+		stats.put("relayedSessions", cluster.getRelayCount());
+		stats.put("remotePeers", cluster.getProxyCount());
+		return stats;
+	}
+
+	//-------------------------------------------------------------------------
+	// Call setup latency per step (p50/p90/p99/max) over recent matches, and
+	// the last ?recent=<n> traces (default 10).
+	//-------------------------------------------------------------------------
+	@RequestMapping("/setup")
+	public Map<String, Object> setup(
+			@RequestParam(value = "recent", defaultValue = "10") int recent) {
+		return setupTracer.summary(recent);
+	}
+
+	//-------------------------------------------------------------------------
+	// WebRTC quality averages per live match; ?degraded=true lists only the
+	// matches currently over an alert threshold.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/quality")
+	public Map<String, Object> quality(
+			@RequestParam(value = "degraded", defaultValue = "false") boolean degraded) {
+		return quality.snapshot(degraded);
+	}
+
+	//-------------------------------------------------------------------------
+	// Recording mode in use and its cost so far (see RecordingCostMeter).
+	//-------------------------------------------------------------------------
+	@RequestMapping("/recording")
+	public Map<String, Object> recording() {
+		return recordingCost.snapshot();
+	}
+
+	//-------------------------------------------------------------------------
+	// POST ?players=a,b,c,d[&pairing=ROTATING][&rounds=n] starts a session
+	// of scheduled matches for registered players (409 if one is already
+	// running, or fewer than 2 distinct players; 400 for a blank name); GET
+	// reports round completion times; POST /stop ends the session after the
+	// current round.
+	//-------------------------------------------------------------------------
+	@RequestMapping(value = "/tournament", method = RequestMethod.POST)
+	public ResponseEntity<Map<String, Object>> startTournament(
+			@RequestParam("players") String players,
+			@RequestParam(value = "pairing", defaultValue = "ROUND_ROBIN") TournamentScheduler.Pairing pairing,
+			@RequestParam(value = "rounds", defaultValue = "0") int rounds) {
+		boolean started;
+		try {
+			started = tournament.start(Arrays.asList(players.split(",", -1)),
+					pairing, rounds);
+		} catch (IllegalArgumentException e) {
+			Map<String, Object> error = new LinkedHashMap<String, Object>();
+			error.put("error", e.getMessage());
+			return new ResponseEntity<Map<String, Object>>(error,
+					HttpStatus.BAD_REQUEST);
+		}
+		return new ResponseEntity<Map<String, Object>>(tournament.status(),
+				started ? HttpStatus.OK : HttpStatus.CONFLICT);
+	}
+
+	@RequestMapping(value = "/tournament", method = RequestMethod.GET)
+	public Map<String, Object> tournamentStatus() {
+		return tournament.status();
+	}
+
+	@RequestMapping(value = "/tournament/stop", method = RequestMethod.POST)
+	public Map<String, Object> stopTournament() {
+		tournament.stop();
+		return tournament.status();
+	}
+}
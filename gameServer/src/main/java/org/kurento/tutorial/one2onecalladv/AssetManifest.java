@@ -0,0 +1,63 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+import com.google.gson.reflect.TypeToken;
+
+//-----------------------------------------------------------------------------
+// Maps static file names to the fingerprinted names written by
+// AssetPipeline, for URLs the server sends to clients (game images). Without
+// a manifest on the classpath (running from an IDE, or a build that skipped
+// the asset stage) the original names are used.
+//-----------------------------------------------------------------------------
+public class AssetManifest {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(AssetManifest.class);
+
+	final static String RESOURCE = "/static/" + AssetPipeline.ASSETS_DIR + "/"
+			+ AssetPipeline.MANIFEST;
+
+	private final Map<String, String> hashedNames;
+
+	public AssetManifest() throws IOException {
+		InputStream in = AssetManifest.class.getResourceAsStream(RESOURCE);
+		if (in == null) {
+			log.info("No asset manifest, serving static files unhashed");
+			hashedNames = Collections.emptyMap();
+			return;
+		}
+		try {
+			hashedNames = new Gson().fromJson(new InputStreamReader(in,
+					StandardCharsets.UTF_8),
+					new TypeToken<Map<String, String>>() {
+					}.getType());
+		} finally {
+			in.close();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Page-relative URL of a static file given as "img/Hat.png" or
+	// "./img/Hat.png".
+	//-------------------------------------------------------------------------
+	public String url(String path) {
+		String name = path.startsWith("./") ? path.substring(2) : path;
+		String hashed = hashedNames.get(name);
+		return (hashed != null) ? "./" + AssetPipeline.ASSETS_DIR + "/" + hashed
+				: "./" + name;
+	}
+
+	public int size() {
+		return hashedNames.size();
+	}
+}
@@ -0,0 +1,202 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.GsonBuilder;
+
+//-----------------------------------------------------------------------------
+// Build-time asset stage, run by Maven on the compiled static directory
+// (compile phase, see pom.xml):
+//   - empties assets/, so builds without clean leave no stale hashed files
+//   - copies img/, css/ and js/ files to assets/ with a content hash in the
+//     name (img/Hat.png -> assets/img/Hat.<hash>.png)
+//   - rewrites references between them and in index.html to the hashed names
+//   - writes .gz variants of text files, and .br variants if a brotli
+//     command is on the PATH
+//   - writes assets/manifest.json mapping original to hashed names
+// Images are processed first so the hashes of CSS/JS cover the image names
+// they reference. Only the build output is modified.
+//-----------------------------------------------------------------------------
+public class AssetPipeline {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(AssetPipeline.class);
+
+	final static String ASSETS_DIR = "assets";
+	final static String MANIFEST = "manifest.json";
+	final static String[] SOURCE_DIRS = { "img", "css", "js" };
+	final static List<String> COMPRESSIBLE = Arrays.asList("js", "css",
+			"html", "svg", "json", "txt");
+	final static int HASH_CHARS = 10;
+
+	private final File staticDir;
+	private final File assetsDir;
+	private final Map<String, String> manifest = new LinkedHashMap<String, String>();
+	private boolean brotli = true;
+
+	public AssetPipeline(File staticDir) {
+		this.staticDir = staticDir;
+		this.assetsDir = new File(staticDir, ASSETS_DIR);
+	}
+
+	public static void main(String[] args) throws Exception {
+		new AssetPipeline(new File(args[0])).run();
+	}
+
+	public void run() throws IOException, InterruptedException {
+		delete(assetsDir);
+		for (String dir : SOURCE_DIRS) {
+			File[] files = new File(staticDir, dir).listFiles();
+			if (files == null) {
+				continue;
+			}
+			Arrays.sort(files);
+			for (File file : files) {
+				if (file.isFile()) {
+					fingerprint(dir + "/" + file.getName(), file);
+				}
+			}
+		}
+
+		File index = new File(staticDir, "index.html");
+		if (index.isFile()) {
+			String html = rewrite(read(index), ASSETS_DIR + "/");
+			Files.write(index.toPath(), html.getBytes(StandardCharsets.UTF_8));
+		}
+
+		assetsDir.mkdirs();
+		File manifestFile = new File(assetsDir, MANIFEST);
+		Files.write(manifestFile.toPath(), new GsonBuilder()
+				.setPrettyPrinting().create().toJson(manifest)
+				.getBytes(StandardCharsets.UTF_8));
+		log.info("Fingerprinted {} assets into {}", manifest.size(), assetsDir);
+	}
+
+	private static void delete(File file) throws IOException {
+		File[] children = file.listFiles();
+		if (children != null) {
+			for (File child : children) {
+				delete(child);
+			}
+		}
+		Files.deleteIfExists(file.toPath());
+	}
+
+	//-------------------------------------------------------------------------
+	// Copies one file to its hashed name. CSS references are relative to the
+	// stylesheet (both live under assets/); JS references are relative to the
+	// page, so they get the assets/ prefix.
+	//-------------------------------------------------------------------------
+	private void fingerprint(String path, File file) throws IOException,
+			InterruptedException {
+		String ext = extension(path);
+		byte[] content = Files.readAllBytes(file.toPath());
+		if (ext.equals("css")) {
+			content = rewrite(read(file), "").getBytes(StandardCharsets.UTF_8);
+		} else if (ext.equals("js")) {
+			content = rewrite(read(file), ASSETS_DIR + "/").getBytes(
+					StandardCharsets.UTF_8);
+		}
+
+		String base = ext.isEmpty() ? path + "." : path.substring(0,
+				path.length() - ext.length());
+		String hashed = base + hash(content) + (ext.isEmpty() ? "" : "." + ext);
+		File out = new File(assetsDir, hashed);
+		out.getParentFile().mkdirs();
+		Files.write(out.toPath(), content);
+		compress(out);
+		manifest.put(path, hashed);
+	}
+
+	//-------------------------------------------------------------------------
+	// Replaces quoted, parenthesized or ./-prefixed references to files
+	// already fingerprinted.
+	//-------------------------------------------------------------------------
+	private String rewrite(String text, String prefix) {
+		for (Map.Entry<String, String> entry : manifest.entrySet()) {
+			Pattern reference = Pattern.compile("(?<=[\"'(=]|\\./)"
+					+ Pattern.quote(entry.getKey()));
+			text = reference.matcher(text).replaceAll(
+					Matcher.quoteReplacement(prefix + entry.getValue()));
+		}
+		return text;
+	}
+
+	private void compress(File file) throws IOException, InterruptedException {
+		if (!COMPRESSIBLE.contains(extension(file.getName()))) {
+			return;
+		}
+		byte[] content = Files.readAllBytes(file.toPath());
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		OutputStream gzip = new GZIPOutputStream(buffer);
+		try {
+			gzip.write(content);
+		} finally {
+			gzip.close();
+		}
+		if (buffer.size() < content.length) {
+			OutputStream out = new FileOutputStream(file.getPath() + ".gz");
+			try {
+				buffer.writeTo(out);
+			} finally {
+				out.close();
+			}
+		}
+
+		if (brotli) {
+			try {
+				Process process = new ProcessBuilder("brotli", "-f", "-q", "11",
+						"-o", file.getPath() + ".br", file.getPath())
+						.inheritIO().start();
+				if (process.waitFor() != 0) {
+					log.warn("brotli failed on {}", file);
+				}
+			} catch (IOException e) {
+				log.info("brotli not found, skipping .br variants");
+				brotli = false;
+			}
+		}
+	}
+
+	private static String hash(byte[] content) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(
+					content);
+			StringBuilder hex = new StringBuilder();
+			for (byte b : digest) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.substring(0, HASH_CHARS);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String extension(String path) {
+		int dot = path.lastIndexOf('.');
+		return (dot < 0) ? "" : path.substring(dot + 1);
+	}
+
+	private static String read(File file) throws IOException {
+		return new String(Files.readAllBytes(file.toPath()),
+				StandardCharsets.UTF_8);
+	}
+}
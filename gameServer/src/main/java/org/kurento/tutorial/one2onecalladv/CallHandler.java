@@ -1,14 +1,22 @@
 package org.kurento.tutorial.one2onecalladv;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
 import org.kurento.client.MediaPipeline;
-import org.kurento.client.KurentoClient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.PongMessage;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
@@ -20,23 +28,64 @@ import com.google.gson.JsonObject;
 //---------------------------------------------------------------------------
 // Protocol handler for 1 to 1 video call communication and game progression.
 //---------------------------------------------------------------------------
-public class CallHandler extends TextWebSocketHandler {
+public class CallHandler extends TextWebSocketHandler implements
+		HeartbeatMonitor.DeadSessionListener, GamePhaseEngine.PhaseListener,
+		KurentoConnector.ConnectionLostListener {
 
 	private static final Logger log = LoggerFactory
 			.getLogger(CallHandler.class);
 	private static final Gson gson = new GsonBuilder().create();
 
 	private ConcurrentHashMap<String, MediaPipeline> pipelines = new ConcurrentHashMap<String, MediaPipeline>();
+	private ConcurrentHashMap<String, CallMediaPipeline> calls = new ConcurrentHashMap<String, CallMediaPipeline>();
+	// Tournament matches built ahead of their call, by caller name
+	private ConcurrentHashMap<String, CallMediaPipeline> prepared = new ConcurrentHashMap<String, CallMediaPipeline>();
+
+	// Read on creation, so a bad -Drecording.mode fails startup
+	private final CallMediaPipeline.RecordingMode recordingMode = CallMediaPipeline.RecordingMode
+			.fromProperty();
 
 	@Autowired
-	private KurentoClient kurento;
+	private KurentoConnector kms;
 
 	@Autowired
 	private UserRegistry registry;
 
-	public static final int REVIEWING_SEC = 30;
-	public static final int FIRST_INT_SEC = 60;
-	public static final int SECOND_INT_SEC = 60;
+	@Autowired
+	private HeartbeatMonitor heartbeat;
+
+	@Autowired
+	private RateLimiter rateLimiter;
+
+	@Autowired
+	private GamePhaseEngine phases;
+
+	@Autowired
+	private SpectatorManager spectators;
+
+	@Autowired
+	private ProtocolTrace trace;
+
+	@Autowired
+	private RecordingIndex recordings;
+
+	@Autowired
+	private DrainManager drain;
+
+	@Autowired
+	private ClusterNode cluster;
+
+	@Autowired
+	private CallSetupTracer setupTracer;
+
+	@Autowired
+	private CallQualityMonitor quality;
+
+	@Autowired
+	private AssetManifest assets;
+
+	@Autowired
+	private RecordingCostMeter recordingCost;
 	
 	// MESSAGING PROTOCOL
 	// id strings of Server to Client messages
@@ -57,6 +106,11 @@ public class CallHandler extends TextWebSocketHandler {
 		final static String START_SECOND_INT	= "startSecondInterrogation";
 		final static String GET_SECOND_DECISION	= "getSecondDecision";
 		final static String START_POST_GAME		= "startPostGame";
+		final static String SPECTATE_RESPONSE	= "spectateResponse";
+		final static String SPECTATE_END		= "spectateEnd";
+		final static String GET_STATS			= "getStats";
+		final static String NEXT_MATCH			= "nextMatch";
+		final static String ROUND_END			= "roundEnd";
 	}
 
 	public class MSG_C2S 
@@ -71,26 +125,102 @@ public class CallHandler extends TextWebSocketHandler {
 		final static String START_GAME			= "startGame";
 		final static String FIRST_DECISION		= "firstDecision";
 		final static String SECOND_DECISION		= "secondDecision";
+		final static String SPECTATE			= "spectate";
+		final static String STOP_SPECTATE		= "stopSpectate";
+		final static String STATS				= "stats";
+	}
+
+	// Message fields carrying an SDP offer, checked against the size limit
+	final static String[] SDP_OFFER_FIELDS = { "sdpOffer", "sdpOfferCaller",
+			"sdpOfferCallee" };
+
+	@PostConstruct
+	public void init() {
+		heartbeat.setListener(this);
+		phases.addListener(this);
+		kms.setListener(this);
+	}
+
+	@Override
+	public void afterConnectionEstablished(WebSocketSession session)
+			throws Exception {
+		session.setTextMessageSizeLimit(rateLimiter.getMaxFrameBytes());
+		rateLimiter.add(session);
+		heartbeat.add(session);
 	}
 
 	@Override
 	//-------------------------------------------------------------------------
 	// Calls appropriate methods based on protocol messages recvd from clients.
-	//    register, call, incomingCallResponse, play, stop, stopPlay
+	//    register, call, incomingCallResponse, play, stop, stopPlay,
+	//    confirmVideo, startGame, firstDecision, secondDecision,
+	//    spectate, stopSpectate, stats
 	//-------------------------------------------------------------------------
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
+		heartbeat.touch(session);
+
+		switch (rateLimiter.check(session, message.getPayload())) {
+		case CLOSE:
+			log.info("Closing flooding session '{}'", session.getId());
+			session.close(CloseStatus.POLICY_VIOLATION);
+			return;
+		case DROP:
+			return;
+		default:
+			break;
+		}
+
+		trace.record(ProtocolTrace.Direction.IN, session.getId(),
+				RateLimiter.sniffId(message.getPayload()), message.getPayload());
+
+		// Parsed here, before any relay, so that the per-type buckets apply
+		// to the id that is actually dispatched, on whichever node hosts it
 		JsonObject jsonMessage = gson.fromJson(message.getPayload(),
 				JsonObject.class);
+		String id = jsonMessage.has("id") ? jsonMessage.get("id")
+				.getAsString() : null;
+		switch (rateLimiter.checkMessage(session, id)) {
+		case CLOSE:
+			log.info("Closing flooding session '{}'", session.getId());
+			session.close(CloseStatus.POLICY_VIOLATION);
+			return;
+		case DROP:
+			return;
+		default:
+			break;
+		}
+
+		if (cluster.relay(session, message.getPayload())) {
+			return;
+		}
+
 		UserSession user = registry.getBySession(session);
 
-		if (user != null) {
-			log.debug("Incoming message from user '{}': {}", user.getName(),
-					jsonMessage);
-		} else {
-			log.debug("Incoming message from new user: {}", jsonMessage);
+		for (String field : SDP_OFFER_FIELDS) {
+			if (jsonMessage.has(field)
+					&& !rateLimiter.isSdpAllowed(jsonMessage.get(field)
+							.getAsString())) {
+				log.info("Closing session '{}': SDP offer too large",
+						session.getId());
+				session.close(CloseStatus.POLICY_VIOLATION);
+				return;
+			}
+		}
+
+		try {
+			dispatch(session, user, jsonMessage);
+		} catch (Exception e) {
+			log.error("Error handling message from session " + session.getId(),
+					e);
+			trace.dumpToLog(user != null ? registry.getMatchSessionIds(user)
+					: Collections.singleton(session.getId()));
+			throw e;
 		}
+	}
 
+	private void dispatch(WebSocketSession session, UserSession user,
+			JsonObject jsonMessage) throws Exception {
 		switch (jsonMessage.get("id").getAsString()) {
 		case MSG_C2S.REGISTER:
 			register(session, jsonMessage);
@@ -111,14 +241,32 @@ public class CallHandler extends TextWebSocketHandler {
 		case MSG_C2S.STOP_PLAY:
 			releasePipeline(session);
 			break;
+		case MSG_C2S.SPECTATE:
+			spectate(session, user, jsonMessage);
+			break;
+		case MSG_C2S.STOP_SPECTATE:
+			spectators.stop(session);
+			break;
+		case MSG_C2S.STATS:
+			if (user != null) {
+				quality.report(calls.get(session.getId()), user.getName(),
+						jsonMessage);
+			}
+			break;
 		case MSG_C2S.CONFIRM_VIDEO:
-			confirmVideo(user);
+			gameMessage(user, GamePhaseEngine.Trigger.CONFIRM_VIDEO,
+					jsonMessage);
 			break;
 		case MSG_C2S.START_GAME:
-			startGame(user);
+			gameMessage(user, GamePhaseEngine.Trigger.START_GAME, jsonMessage);
 			break;
 		case MSG_C2S.FIRST_DECISION:
-			startSecondInterrogation(user, jsonMessage);
+			gameMessage(user, GamePhaseEngine.Trigger.FIRST_DECISION,
+					jsonMessage);
+			break;
+		case MSG_C2S.SECOND_DECISION:
+			gameMessage(user, GamePhaseEngine.Trigger.SECOND_DECISION,
+					jsonMessage);
 			break;
 		default:
 			break;
@@ -134,11 +282,14 @@ public class CallHandler extends TextWebSocketHandler {
 			throws IOException {
 		String name = jsonMessage.getAsJsonPrimitive("name").getAsString();
 
-		UserSession caller = new UserSession(session, name);
+		UserSession caller = new UserSession(session, name, trace);
 		String responseMsg = "accepted";
-		if (name.isEmpty()) {
+		if (drain.isDraining()) {
+			responseMsg = "rejected: server is shutting down";
+			drain.countRefused();
+		} else if (name.isEmpty()) {
 			responseMsg = "rejected: empty user name";
-		} else if (registry.exists(name)) {
+		} else if (registry.exists(name) || !cluster.claim(name)) {
 			responseMsg = "rejected: user '" + name + "' already registered";
 		} else {
 			registry.register(caller);
@@ -147,13 +298,14 @@ public class CallHandler extends TextWebSocketHandler {
 		JsonObject response = new JsonObject();
 		response.addProperty("id", "resgisterResponse");
 		response.addProperty("response", responseMsg);
+		addDrainRedirect(response);
 		caller.sendMessage(response);
 	}
 
 	//--------------------------------------------------------------------------
     // In response to client "call" message:
-	//   checks that callee ("to") exists in registry, and if so, sends an 
-	//   "incomingCall" message to the callee client
+	//   checks that callee ("to") exists in registry, or on another cluster
+	//   node, and if so, sends an "incomingCall" message to the callee client
 	//--------------------------------------------------------------------------
 	private void call(UserSession caller, JsonObject jsonMessage)
 			throws IOException {
@@ -161,17 +313,34 @@ public class CallHandler extends TextWebSocketHandler {
 		String from = jsonMessage.get("from").getAsString();
 		JsonObject response = new JsonObject();
 
-		if (registry.exists(to)) {
+		if (drain.isDraining()) {
+			response.addProperty("id", MSG_S2C.CALL_RESPONSE);
+			response.addProperty("response", "rejected");
+			response.addProperty("message", "server is shutting down");
+			addDrainRedirect(response);
+			drain.countRefused();
+
+			caller.sendMessage(response);
+		} else if (!kms.isReady()) {
+			response.addProperty("id", MSG_S2C.CALL_RESPONSE);
+			response.addProperty("response", "rejected");
+			response.addProperty("message", "media server unavailable");
+
+			caller.sendMessage(response);
+		} else if (registry.exists(to) || cluster.attachRemote(to) != null) {
 			UserSession callee = registry.getByName(to);
 			caller.setSdpOffer(jsonMessage.getAsJsonPrimitive("sdpOffer")
 					.getAsString());
 			caller.setCallingTo(to);
+			setupTracer.abandon(caller.setupTrace);
+			caller.setupTrace = new CallSetupTrace(from, to);
 
 			response.addProperty("id", MSG_S2C.INCOMING_CALL);
 			response.addProperty("from", from);
 
 			callee.sendMessage(response);
 			callee.setCallingFrom(from);
+			caller.setupTrace.mark(CallSetupTrace.INCOMING_CALL);
 		} else {
 			response.addProperty("id", MSG_S2C.CALL_RESPONSE);
 			response.addProperty("response", "rejected");
@@ -190,20 +359,31 @@ public class CallHandler extends TextWebSocketHandler {
 		String from = jsonMessage.get("from").getAsString();
 		UserSession calleer = registry.getByName(from);
 		String to = calleer.getCallingTo();
+		CallSetupTrace setup = (calleer.setupTrace != null) ? calleer.setupTrace
+				: new CallSetupTrace(from, to);
+		setup.mark(CallSetupTrace.CALLEE_ACCEPT);
 
-		if ("accept".equals(callResponse)) {
+		if ("accept".equals(callResponse) && kms.isReady()
+				&& !drain.isDraining()) {
 			log.debug("Accepted call from '{}' to '{}'", from, to);
+			calleer.setupTrace = callee.setupTrace = setup;
 
-			CallMediaPipeline callMediaPipeline = new CallMediaPipeline(
-					kurento, from, to);
+			CallMediaPipeline callMediaPipeline = takePreparedCall(from, to);
+			if (callMediaPipeline == null) {
+				callMediaPipeline = new CallMediaPipeline(kms.getClient(),
+						from, to, recordingMode, setup);
+			}
 			pipelines.put(calleer.getSessionId(),
 					callMediaPipeline.getPipeline());
 			pipelines.put(callee.getSessionId(),
 					callMediaPipeline.getPipeline());
+			calls.put(calleer.getSessionId(), callMediaPipeline);
+			calls.put(callee.getSessionId(), callMediaPipeline);
 
 			String calleeSdpOffer = jsonMessage.get("sdpOffer").getAsString();
 			String calleeSdpAnswer = callMediaPipeline
 					.generateSdpAnswerForCallee(calleeSdpOffer);
+			setup.mark(CallSetupTrace.OFFER_CALLEE);
 
 			JsonObject startCommunication = new JsonObject();
 			startCommunication.addProperty("id", MSG_S2C.START_COMMUNICATION);
@@ -213,6 +393,7 @@ public class CallHandler extends TextWebSocketHandler {
 			String callerSdpOffer = registry.getByName(from).getSdpOffer();
 			String callerSdpAnswer = callMediaPipeline
 					.generateSdpAnswerForCaller(callerSdpOffer);
+			setup.mark(CallSetupTrace.OFFER_CALLER);
 
 			JsonObject response = new JsonObject();
 			response.addProperty("id", MSG_S2C.CALL_RESPONSE);
@@ -221,6 +402,8 @@ public class CallHandler extends TextWebSocketHandler {
 			calleer.sendMessage(response);
 
 			callMediaPipeline.record();
+			setup.mark(CallSetupTrace.RECORD);
+			recordings.start(callMediaPipeline);
 			
 			// set gameState
 			callee.gameState = UserSession.GameState.WAITING_FOR_VIDEO_CONFIRM;
@@ -240,11 +423,105 @@ public class CallHandler extends TextWebSocketHandler {
 			*/
 
 		} else {
+			setupTracer.abandon(setup);
 			JsonObject response = new JsonObject();
 			response.addProperty("id", MSG_S2C.CALL_RESPONSE);
 			response.addProperty("response", "rejected");
 			calleer.sendMessage(response);
+			cluster.detach(callee);
+		}
+	}
+
+	//--------------------------------------------------------------------------
+	// While draining, tells refused clients where to reconnect, if configured.
+	//--------------------------------------------------------------------------
+	private void addDrainRedirect(JsonObject response) {
+		if (drain.isDraining() && drain.getRedirectUrl() != null) {
+			response.addProperty("redirect", drain.getRedirectUrl());
+		}
+	}
+
+	//--------------------------------------------------------------------------
+	// Number of calls whose game has not reached POST_SURVEY yet.
+	//--------------------------------------------------------------------------
+	public int getActiveMatchCount() {
+		Set<CallMediaPipeline> active = Collections
+				.newSetFromMap(new IdentityHashMap<CallMediaPipeline, Boolean>());
+		for (Map.Entry<String, CallMediaPipeline> entry : calls.entrySet()) {
+			UserSession user = registry.getBySessionId(entry.getKey());
+			if (user != null
+					&& user.gameState != UserSession.GameState.POST_SURVEY) {
+				active.add(entry.getValue());
+			}
+		}
+		return active.size();
+	}
+
+	//--------------------------------------------------------------------------
+	// Distinct calls currently set up.
+	//--------------------------------------------------------------------------
+	public Collection<CallMediaPipeline> getCalls() {
+		Set<CallMediaPipeline> distinct = Collections
+				.newSetFromMap(new IdentityHashMap<CallMediaPipeline, Boolean>());
+		distinct.addAll(calls.values());
+		return distinct;
+	}
+
+	//--------------------------------------------------------------------------
+	// On shutdown, releases every pipeline so KMS closes the recordings.
+	//--------------------------------------------------------------------------
+	@PreDestroy
+	public void releaseAll() {
+		for (String caller : prepared.keySet()) {
+			discardPreparedCall(caller);
+		}
+		for (String sessionId : pipelines.keySet()) {
+			MediaPipeline pipeline = pipelines.remove(sessionId);
+			if (pipeline != null && !pipelines.containsValue(pipeline)) {
+				pipeline.release();
+			}
 		}
+		calls.clear();
+	}
+
+	//--------------------------------------------------------------------------
+	// The media server connection was lost, and every pipeline with it.
+	// Drops all calls and playbacks without releasing them, resets the
+	// players and tells registered clients their call or playback is over.
+	//--------------------------------------------------------------------------
+	@Override
+	public void onConnectionLost() {
+		prepared.clear();
+		for (String sessionId : pipelines.keySet()) {
+			if (pipelines.remove(sessionId) == null) {
+				continue;
+			}
+			CallMediaPipeline call = calls.remove(sessionId);
+			if (call != null) {
+				spectators.endMatch(call);
+				quality.endMatch(call);
+			}
+			UserSession user = registry.getBySessionId(sessionId);
+			if (user == null) {
+				continue;
+			}
+			JsonObject message = new JsonObject();
+			if (call != null) {
+				setupTracer.abandon(user.setupTrace);
+				user.setupTrace = null;
+				phases.reset(user, null);
+				message.addProperty("id", MSG_S2C.STOP_COMMUNICATION);
+			} else {
+				message.addProperty("id", MSG_S2C.PLAY_END);
+			}
+			try {
+				user.sendMessage(message);
+			} catch (IOException e) {
+				log.debug("Could not notify '{}' of media server loss",
+						user.getName());
+			}
+		}
+		log.warn("Media server lost: ended all calls and playbacks");
 	}
 
 	//--------------------------------------------------------------------------
@@ -263,13 +540,151 @@ public class CallHandler extends TextWebSocketHandler {
 
 	//--------------------------------------------------------------------------
 	public void releasePipeline(WebSocketSession session) throws IOException {
-		String sessionId = session.getId();
-		if (pipelines.containsKey(sessionId)) {
-			pipelines.get(sessionId).release();
-			pipelines.remove(sessionId);
+		UserSession user = registry.getBySession(session);
+		releasePipeline(session, user != null ? registry.getPeer(user) : null);
+	}
+
+	//--------------------------------------------------------------------------
+	// Releases the session's pipeline. If it is a call shared with peer, the
+	// peer's references are dropped as well and true is returned.
+	//--------------------------------------------------------------------------
+	private boolean releasePipeline(WebSocketSession session, UserSession peer) {
+		MediaPipeline pipeline = pipelines.remove(session.getId());
+		if (pipeline == null) {
+			return false;
+		}
+		CallMediaPipeline call = calls.remove(session.getId());
+		boolean shared = peer != null
+				&& pipelines.remove(peer.getSessionId(), pipeline);
+		if (shared) {
+			calls.remove(peer.getSessionId());
+		}
+		if (call != null) {
+			spectators.endMatch(call);
+			quality.endMatch(call);
+		}
+		pipeline.release();
+		if (call != null) {
+			recordingCost.matchEnded(call);
+			cluster.detach(registry.getBySession(session));
+			cluster.detach(peer);
+		}
+		return shared;
+	}
+
+	//--------------------------------------------------------------------------
+	// For the tournament scheduler: whether the user holds a pipeline, and
+	// ending a user's call without messaging the clients, which are moved
+	// to their next match instead. Both players are reset.
+	//--------------------------------------------------------------------------
+	public boolean isInCall(UserSession user) {
+		return pipelines.containsKey(user.getSessionId());
+	}
+
+	public void endCall(UserSession user) {
+		UserSession peer = registry.getPeer(user);
+		releasePipeline(user.getSession(), peer);
+		phases.reset(user, peer);
+	}
+
+	//--------------------------------------------------------------------------
+	// For the tournament scheduler: builds the media of a scheduled match
+	// before its clients call, so pipelines are created at the scheduler's
+	// pace instead of all at once when a round starts. The next call from
+	// caller to callee that is accepted uses it; discardPreparedCall()
+	// releases it if that call never comes. Building it ahead is not part
+	// of the call's setup trace.
+	//--------------------------------------------------------------------------
+	public void prepareCall(String caller, String callee) {
+		CallMediaPipeline call = new CallMediaPipeline(kms.getClient(), caller,
+				callee, recordingMode, new CallSetupTrace(caller, callee));
+		CallMediaPipeline replaced = prepared.put(caller, call);
+		if (replaced != null) {
+			replaced.getPipeline().release();
 		}
 	}
 
+	public void discardPreparedCall(String caller) {
+		CallMediaPipeline call = prepared.remove(caller);
+		if (call != null) {
+			call.getPipeline().release();
+		}
+	}
+
+	private CallMediaPipeline takePreparedCall(String caller, String callee) {
+		CallMediaPipeline call = prepared.remove(caller);
+		if (call != null && !call.getTo().equals(callee)) {
+			call.getPipeline().release();
+			return null;
+		}
+		return call;
+	}
+
+	//--------------------------------------------------------------------------
+	// In response to client "spectate" message
+	// {user, token, sdpOfferCaller, sdpOfferCallee}:
+	//   attaches a registered session that is not playing itself, and holds
+	//   the observer token, as a viewer of the match the given player is in,
+	//   if the match has room for more viewers. Both players are shown, each
+	//   on its own stream.
+	//--------------------------------------------------------------------------
+	private void spectate(WebSocketSession session, UserSession viewer,
+			JsonObject jsonMessage) throws IOException {
+		String user = jsonMessage.get("user").getAsString();
+		UserSession player = registry.getByName(user);
+		CallMediaPipeline call = (player != null) ? calls.get(player
+				.getSessionId()) : null;
+
+		JsonObject response = new JsonObject();
+		response.addProperty("id", MSG_S2C.SPECTATE_RESPONSE);
+
+		String[] sdpAnswers = null;
+		if (viewer == null) {
+			response.addProperty("message", "register before spectating");
+		} else if (!spectators.isAuthorized(jsonMessage.has("token")
+				? jsonMessage.get("token").getAsString() : null)) {
+			response.addProperty("message", "not authorized to spectate");
+		} else if (isInCall(viewer)) {
+			response.addProperty("message", "players cannot spectate");
+		} else if (call != null && call.hasPlayer(user)) {
+			sdpAnswers = spectators.spectate(session, call, jsonMessage.get(
+					"sdpOfferCaller").getAsString(),
+					jsonMessage.get("sdpOfferCallee").getAsString());
+			if (sdpAnswers == null) {
+				response.addProperty("message", "too many spectators");
+			}
+		} else {
+			response.addProperty("message", "user '" + user
+					+ "' is not in a call");
+		}
+
+		if (sdpAnswers != null) {
+			response.addProperty("response", "accepted");
+			response.addProperty("sdpAnswerCaller", sdpAnswers[0]);
+			response.addProperty("sdpAnswerCallee", sdpAnswers[1]);
+		} else {
+			response.addProperty("response", "rejected");
+		}
+		sendMessage(session, response);
+	}
+
+	//--------------------------------------------------------------------------
+	// For replies to sessions that may not be registered (play, spectate).
+	//--------------------------------------------------------------------------
+	private void sendMessage(WebSocketSession session, JsonObject message)
+			throws IOException {
+		String payload = message.toString();
+		trace.record(ProtocolTrace.Direction.OUT, session.getId(), message
+				.get("id").getAsString(), payload);
+		SessionWriter.send(session, new TextMessage(payload));
+	}
+
+	//--------------------------------------------------------------------------
+	// In response to client "play" message:
+	//   plays the user's recorded call. An optional "phase" (a GameState name)
+	//   or "offset" (seconds) starts playback at the recording segment that
+	//   covers it; "position" in the response is where playback starts.
+	//--------------------------------------------------------------------------
 	private void play(WebSocketSession session, JsonObject jsonMessage)
 			throws IOException {
 		String user = jsonMessage.get("user").getAsString();
@@ -278,15 +693,45 @@ public class CallHandler extends TextWebSocketHandler {
 		JsonObject response = new JsonObject();
 		response.addProperty("id", MSG_S2C.PLAY_RESPONSE);
 
-		if (registry.getByName(user) != null
-				&& registry.getBySession(session) != null) {
+		RecordingIndex.Entry start = null;
+		if (jsonMessage.has("phase") || jsonMessage.has("offset")) {
+			String phase = jsonMessage.has("phase") ? jsonMessage.get("phase")
+					.getAsString() : null;
+			long offsetMs = jsonMessage.has("offset") ? jsonMessage.get(
+					"offset").getAsLong() * 1000 : 0;
+			start = recordings.find(user, phase, offsetMs);
+			if (start == null) {
+				response.addProperty("response", "rejected");
+				response.addProperty("error", "No recording of "
+						+ (phase != null ? "phase '" + phase + "'" : "offset")
+						+ " for user '" + user + "'");
+				sendMessage(session, response);
+				return;
+			}
+		}
+
+		if (start == null) {
+			start = recordings.find(user, null, 0);
+		}
+		// Without an index only DUAL mode has a file named after the user
+		String uri = (start != null) ? start.getUri()
+				: (recordingMode == CallMediaPipeline.RecordingMode.DUAL) ? CallMediaPipeline
+						.recordingUri(user, null) : null;
+
+		if (!kms.isReady()) {
+			response.addProperty("response", "rejected");
+			response.addProperty("error", "Media server unavailable");
+		} else if (registry.getByName(user) != null
+				&& registry.getBySession(session) != null && uri != null) {
 			PlayMediaPipeline playMediaPipeline = new PlayMediaPipeline(
-					kurento, user, session);
+					kms.getClient(), uri, session);
 			String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
 			String sdpAnswer = playMediaPipeline.generateSdpAnswer(sdpOffer);
 
 			response.addProperty("response", "accepted");
 			response.addProperty("sdpAnswer", sdpAnswer);
+			response.addProperty("position",
+					(start != null) ? start.getOffsetMs() / 1000 : 0);
 
 			playMediaPipeline.play();
 
@@ -296,129 +741,120 @@ public class CallHandler extends TextWebSocketHandler {
 			response.addProperty("error", "No recording for user '" + user
 					+ "'. Please type a correct user in the 'Peer' field.");
 		}
-		session.sendMessage(new TextMessage(response.toString()));
+		sendMessage(session, response);
 	}
 
-	//--------------------------------------------------------------------------
-	// Handle 'confirmVideo' message from client.  Checks that the user is
-	// in a call, changes users gameState to 
-	//--------------------------------------------------------------------------
-	private void confirmVideo(UserSession user)
-			throws IOException {
-		log.debug("Received video confirmation from user '{}'", user.getName());
-		log.debug("user.getCallingTo()= '{}'", user.getCallingTo());
-		log.debug("user.getCallingFrom()= '{}'", user.getCallingFrom());
-		UserSession otherUser = null;
-			
-		if(user.gameState == UserSession.GameState.WAITING_FOR_VIDEO_CONFIRM) {
-			user.gameState = UserSession.GameState.WAITING_FOR_PEER_CONFIRM;
-		}
-		if(user.gameState == UserSession.GameState.WAITING_FOR_PEER_CONFIRM) {
-			if(user.getCallingTo() == null) {
-				otherUser = registry.getByName(user.getCallingFrom());
-			}
-			else {
-				otherUser = registry.getByName(user.getCallingTo());
-			}			
-			
-			if(otherUser == null) {
-				log.debug("ERROR: confirmVideo with null otherUser. from user '{}'",user.getName());
-				return;
-			}				
-			assignRoles(user, otherUser);
-		}
-		else {
-			// Unexpected confirm received.
-			log.debug("ERROR: Unexpected confirm from user '{}'", 
-					  user.getName());
-		}
-		
-	}
-	
 	//-------------------------------------------------------------------------
-	private void assignRoles(UserSession a, UserSession b) 
+	// Handle a game message ('confirmVideo', 'startGame', 'firstDecision',
+	// 'secondDecision') by feeding it to the phase engine. Decisions are
+	// stored on both players only if the engine accepts them, before the
+	// phase listeners run.
+	//-------------------------------------------------------------------------
+	private void gameMessage(UserSession user,
+			final GamePhaseEngine.Trigger trigger, JsonObject jsonMessage)
 			throws IOException {
-				
-		UserSession first = null;
-		UserSession second = null;
-		log.debug("assignRoles()");
-		if( (a == null ) || (b == null) ) {
-			log.debug("ERROR: assignRoles(-) called with null user");
+		if (user == null) {
+			log.debug("ERROR: {} from unregistered session", trigger);
 			return;
 		}
-		if( a.getName().compareTo(b.getName()) > 0 ) {
-			first = a;
-			second = b;
-		}
-		else {
-			first = b;
-			second = a;
+		if (!jsonMessage.has("decision")) {
+			phases.fire(user, trigger);
+			return;
 		}
-		synchronized(first) {
-			synchronized(second) {
-				if( (first.gameState == 
-				        UserSession.GameState.WAITING_FOR_PEER_CONFIRM) &&
-				    (second.gameState == 
-					    UserSession.GameState.WAITING_FOR_PEER_CONFIRM) ) {
-							
-					first.gameState = UserSession.GameState.WAITING_FOR_START;
-					second.gameState = UserSession.GameState.WAITING_FOR_START;
-					
-					// SET ROLES and SEND MESSAGE
-					// TODO: add randomness
-					first.role = UserSession.Role.INTERROGATOR;
-					JsonObject message = new JsonObject();
-					message.addProperty("id", MSG_S2C.ROLE_ASSIGNMENT);
-					message.addProperty("role", "interrogator");
-					first.sendMessage(message);
-
-					second.role = UserSession.Role.DESCRIBER;
-					message = new JsonObject(); // is sendMessage destructive?
-					message.addProperty("id", MSG_S2C.ROLE_ASSIGNMENT);
-					message.addProperty("role", "describer");
-					second.sendMessage(message);
+		final String decision = jsonMessage.get("decision").getAsString();
+		phases.fire(user, trigger, new GamePhaseEngine.TransitionAction() {
+			@Override
+			public void apply(UserSession user, UserSession peer) {
+				if (trigger == GamePhaseEngine.Trigger.FIRST_DECISION) {
+					user.firstDecision = peer.firstDecision = decision;
+				} else {
+					user.secondDecision = peer.secondDecision = decision;
 				}
 			}
-		}
+		});
 	}
 
 	//-------------------------------------------------------------------------
-	private void startGame(UserSession user)
-			throws IOException {
-		log.debug("Received startGame from user '{}'", user.getName());
-		log.debug("user.getCallingTo()= '{}'", user.getCallingTo());
-		log.debug("user.getCallingFrom()= '{}'", user.getCallingFrom());
-		UserSession otherUser = null;
-		
-		if(user.gameState == UserSession.GameState.WAITING_FOR_START) {
-			user.gameState = UserSession.GameState.WAITING_FOR_PEER_START;
-		}
-		
-		if(user.gameState == UserSession.GameState.WAITING_FOR_PEER_START) {		
-			if(user.getCallingTo() == null) {
-				otherUser = registry.getByName(user.getCallingFrom());
+	// Phase entry actions: tells both clients about the phase just entered.
+	//-------------------------------------------------------------------------
+	public void onEnter(UserSession.GameState state, UserSession a,
+			UserSession b) throws IOException {
+		UserSession interrogator = (a.role == UserSession.Role.INTERROGATOR) ? a
+				: b;
+		JsonObject message = new JsonObject();
+
+		CallMediaPipeline call = calls.get(a.getSessionId());
+		if (call != null) {
+			recordings.markPhase(call, state);
+		}
+
+		switch (state) {
+		case WAITING_FOR_START:
+			if (a.setupTrace != null) {
+				a.setupTrace.mark(CallSetupTrace.CONFIRM_VIDEO);
 			}
-			else {
-				otherUser = registry.getByName(user.getCallingTo());
-			}			
-			if(otherUser == null) {
-				log.debug("ERROR: StartGame called with no other user detected. from user '{}'", user.getName());
-				return;
-			}				
-			synchronizeStart(user, otherUser);
+			assignRoles(a, b);
+			break;
+		case REVIEWING_IMAGE:
+			if (a.setupTrace != null) {
+				a.setupTrace.mark(CallSetupTrace.START_GAME);
+				setupTracer.complete(a.setupTrace);
+				a.setupTrace = b.setupTrace = null;
+			}
+			// Pick image; TODO: make random
+			a.imageName = b.imageName = "./img/Hat.png";
+			a.hint = b.hint = "article of clothing";
+			// The describer is not asked to bluff yet
+			a.truth = b.truth = GameAnalytics.TRUTH;
+
+			message.addProperty("id", MSG_S2C.START_REVIEWING_IMG);
+			message.addProperty("seconds", phases.getDurationSeconds(state));
+			interrogator.sendMessage(message);
+			// add the image src property (fingerprinted URL) to the
+			// describer's message
+			message.addProperty("src", assets.url(a.imageName));
+			(interrogator == a ? b : a).sendMessage(message);
+			break;
+		case FIRST_INTERROGATION:
+			message.addProperty("id", MSG_S2C.START_FIRST_INT);
+			message.addProperty("seconds", phases.getDurationSeconds(state));
+			a.sendMessage(message);
+			b.sendMessage(message);
+			break;
+		case FIRST_RESPONSE:
+			message.addProperty("id", MSG_S2C.GET_FIRST_DECISION);
+			interrogator.sendMessage(message);
+			break;
+		case SECOND_INTERROGATION:
+			JsonObject hint = new JsonObject();
+			hint.addProperty("id", MSG_S2C.HINT);
+			hint.addProperty("hint", a.hint);
+			interrogator.sendMessage(hint);
+
+			message.addProperty("id", MSG_S2C.START_SECOND_INT);
+			message.addProperty("seconds", phases.getDurationSeconds(state));
+			a.sendMessage(message);
+			b.sendMessage(message);
+			break;
+		case SECOND_RESPONSE:
+			message.addProperty("id", MSG_S2C.GET_SECOND_DECISION);
+			interrogator.sendMessage(message);
+			break;
+		case POST_SURVEY:
+			message.addProperty("id", MSG_S2C.START_POST_GAME);
+			a.sendMessage(message);
+			b.sendMessage(message);
+			break;
+		default:
+			break;
 		}
 	}
 
 	//-------------------------------------------------------------------------
-	private void synchronizeStart(UserSession a, UserSession b) 
-			throws IOException {
+	private void assignRoles(UserSession a, UserSession b) throws IOException {
 		UserSession first = null;
 		UserSession second = null;
-	
-		if( (a == null ) || (b == null) ) {
-			log.debug("ERROR: synchronizeStart(-) called with null user");
-			return;
-		}
+		log.debug("assignRoles()");
 		if( a.getName().compareTo(b.getName()) > 0 ) {
 			first = a;
 			second = b;
@@ -427,196 +863,77 @@ public class CallHandler extends TextWebSocketHandler {
 			first = b;
 			second = a;
 		}
-		synchronized(first) {
-			synchronized(second) {
-				if( (first.gameState == 
-				        UserSession.GameState.WAITING_FOR_PEER_START) &&
-				    (second.gameState == 
-					    UserSession.GameState.WAITING_FOR_PEER_START) ) {
-							
-					first.gameState = UserSession.GameState.REVIEWING_IMAGE;
-					second.gameState = UserSession.GameState.REVIEWING_IMAGE;
-					
-					// Pick image; TODO: make random
-					a.imageName = b.imageName = "./img/Hat.png";
-					a.hint = b.hint = "article of clothing";
-					
-					// SEND MESSAGES
-					JsonObject message = new JsonObject();
-					message.addProperty("id", MSG_S2C.START_REVIEWING_IMG);
-					
-					if(first.role == UserSession.Role.INTERROGATOR) {
-						first.sendMessage(message);
-					}
-					else {
-						second.sendMessage(message);
-					}
-					// add the image src property to the describer's message
-					message.addProperty("src", first.imageName);
-					if(first.role == UserSession.Role.DESCRIBER) {
-						first.sendMessage(message);
-					}
-					else {
-						second.sendMessage(message);
-					}
-					
-					// replace this sleep with a timer spawn
-					// after 30 seconds send the message
-					try {
-						Thread.sleep(REVIEWING_SEC * 1000);                 //1000 milliseconds is one second.
-					} catch(InterruptedException ex) {
-						Thread.currentThread().interrupt();
-					}
-				}
-			}
-		}
-		startInterrogation(a, b);
+
+		// SET ROLES and SEND MESSAGE
+		// TODO: add randomness
+		first.role = UserSession.Role.INTERROGATOR;
+		JsonObject message = new JsonObject();
+		message.addProperty("id", MSG_S2C.ROLE_ASSIGNMENT);
+		message.addProperty("role", "interrogator");
+		first.sendMessage(message);
+
+		second.role = UserSession.Role.DESCRIBER;
+		message = new JsonObject();
+		message.addProperty("id", MSG_S2C.ROLE_ASSIGNMENT);
+		message.addProperty("role", "describer");
+		second.sendMessage(message);
 	}
+
 	//-------------------------------------------------------------------------
-	private void startInterrogation(UserSession a, UserSession b) 
-			throws IOException {
-		UserSession first = null;
-		UserSession second = null;
-	
-		if( (a == null ) || (b == null) ) {
-			log.debug("ERROR: startInterrogation(-) called with null user");
-			return;
-		}
-		if( a.getName().compareTo(b.getName()) > 0 ) {
-			first = a;
-			second = b;
-		}
-		else {
-			first = b;
-			second = a;
-		}
-		synchronized(first) {
-			synchronized(second) {
-				if( (first.gameState == 
-				        UserSession.GameState.REVIEWING_IMAGE) &&
-				    (second.gameState == 
-					    UserSession.GameState.REVIEWING_IMAGE) ) {
-							
-					first.gameState = UserSession.GameState.FIRST_INTERROGATION;
-					second.gameState = UserSession.GameState.FIRST_INTERROGATION;
-					
-					// SEND MESSAGE
-					JsonObject message = new JsonObject();
-					message.addProperty("id", MSG_S2C.START_FIRST_INT);
-					first.sendMessage(message);
-					second.sendMessage(message); 
-					
-					// replace this sleep with a timer spawn
-					// after 2 min send the message
-					try {
-						Thread.sleep(FIRST_INT_SEC*1000);               //1000 milliseconds is one second.
-					} catch(InterruptedException ex) {
-						Thread.currentThread().interrupt();
-					}
-					message = new JsonObject();
-					message.addProperty("id", MSG_S2C.GET_FIRST_DECISION);
-					if(first.role == UserSession.Role.INTERROGATOR) {
-						first.sendMessage(message);
-					}
-					else {
-						second.sendMessage(message);
-					}
-					first.gameState = UserSession.GameState.FIRST_RESPONSE;
-					second.gameState = UserSession.GameState.FIRST_RESPONSE;
+	// Pong frames answer the heartbeat pings sent by HeartbeatMonitor.
+	//-------------------------------------------------------------------------
+	@Override
+	protected void handlePongMessage(WebSocketSession session,
+			PongMessage message) throws Exception {
+		heartbeat.touch(session);
+	}
 
-				}
-				else {
-					log.debug("ERROR: interrogationStart(-) called out of sync");
-				}
-			}
+	//-------------------------------------------------------------------------
+	// Called by HeartbeatMonitor for a client that stopped answering pings.
+	// Frees its media and registration before closing the socket, since the
+	// close handshake may never complete on a half-open connection.
+	//-------------------------------------------------------------------------
+	public void onDeadSession(WebSocketSession session) {
+		releaseSession(session);
+		try {
+			session.close(CloseStatus.SESSION_NOT_RELIABLE);
+		} catch (IOException e) {
+			log.debug("Error closing dead session '{}'", session.getId());
 		}
 	}
 
-		//-------------------------------------------------------------------------
-	private void startSecondInterrogation(UserSession interrogator, 
-										  JsonObject jsonMessage) 
-			throws IOException {
-		UserSession describer = null;
-		UserSession first = null;
-		UserSession second = null;
-	
-	
-		if(interrogator.getCallingTo() == null) {
-			describer = registry.getByName(interrogator.getCallingFrom());
-		}
-		else {
-			describer = registry.getByName(interrogator.getCallingTo());
-		}			
-		if(describer == null) {
-			log.debug("ERROR: startSecondInterrogation called with no other user detected. from user '{}'", interrogator.getName());
-			return;
-		}				
-
-		// Save decision to file
-		// TODO:
-		// maybe better to save until game end, and write image, hint, decisions
-		// all at once?
-		// 
-		interrogator.firstDecision = jsonMessage.get("decision").getAsString();
-		describer.firstDecision = interrogator.firstDecision;
-		
-		if( interrogator.getName().compareTo(describer.getName()) > 0 ) {
-			first = interrogator;
-			second = describer;
+	//-------------------------------------------------------------------------
+	// Removes the user from the registry and releases any pipeline (or
+	// spectator endpoint) it holds.
+	// If the pipeline is a call shared with a peer, the peer is told the call
+	// ended and its reference is dropped too. Safe to call more than once.
+	//-------------------------------------------------------------------------
+	private void releaseSession(WebSocketSession session) {
+		rateLimiter.remove(session);
+		spectators.stop(session);
+		UserSession user = registry.removeBySession(session);
+		UserSession peer = (user != null) ? registry.getPeer(user) : null;
+		if (user != null) {
+			cluster.sessionClosed(session, user);
+			setupTracer.abandon(user.setupTrace);
 		}
-		else {
-			first = describer;
-			second = interrogator;
-		}		
-		synchronized(first) {
-			synchronized(second) {
-				if( (first.gameState == 
-				        UserSession.GameState.FIRST_RESPONSE) &&
-				    (second.gameState == 
-					    UserSession.GameState.FIRST_RESPONSE) ) {
-							
-					first.gameState = UserSession.GameState.SECOND_INTERROGATION;
-					second.gameState = UserSession.GameState.SECOND_INTERROGATION;
-					
-					// SEND HINT MESSAGE
-					JsonObject message = new JsonObject();
-					message.addProperty("id", MSG_S2C.HINT);
-					message.addProperty("hint", first.hint);
-					interrogator.sendMessage(message);
-					
-					// SEND SECOND INT MESSAGE
-					message = new JsonObject();
-					message.addProperty("id", MSG_S2C.START_SECOND_INT);
-					first.sendMessage(message);
-					second.sendMessage(message); 
-					
-					// replace this sleep with a timer spawn
-					// after 2 min send the message
-					try {
-						Thread.sleep(SECOND_INT_SEC*1000);                 //1000 milliseconds is one second.
-					} catch(InterruptedException ex) {
-						Thread.currentThread().interrupt();
-					}
-					// SEND SECOND DECISION MESSAGE
-					message = new JsonObject();
-					message.addProperty("id", MSG_S2C.GET_SECOND_DECISION);
-					interrogator.sendMessage(message);
-					
-					first.gameState = UserSession.GameState.SECOND_RESPONSE;
-					second.gameState = UserSession.GameState.SECOND_RESPONSE;
-				}
-				else {
-					log.debug("ERROR: interrogationStart(-) called out of sync");
-				}
+		if (releasePipeline(session, peer)) {
+			JsonObject message = new JsonObject();
+			message.addProperty("id", MSG_S2C.STOP_COMMUNICATION);
+			try {
+				peer.sendMessage(message);
+			} catch (IOException e) {
+				log.debug("Could not notify '{}' of call end", peer.getName());
 			}
 		}
 	}
-	
+
 	//-------------------------------------------------------------------------
 	@Override
 	public void afterConnectionClosed(WebSocketSession session,
 			CloseStatus status) throws Exception {
-		registry.removeBySession(session);
+		heartbeat.remove(session);
+		releaseSession(session);
 	}
 
 }
@@ -1,10 +1,17 @@
 package org.kurento.tutorial.one2onecalladv;
 
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.kurento.client.Composite;
 import org.kurento.client.FaceOverlayFilter;
+import org.kurento.client.HubPort;
 import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.RecorderEndpoint;
 import org.kurento.client.WebRtcEndpoint;
@@ -13,8 +20,31 @@ import org.kurento.client.WebRtcEndpoint;
 // Handles creation and connection of Media Elements for the advanced one to one
 // call tutorial.
 // Also contains methods to start recording and create SDP answers.
+//
+// The recording mode is chosen per deployment with -Drecording.mode:
+//   DUAL      one file per participant (default)
+//   COMPOSITE one file per match, both participants mixed side by side by
+//             a Composite hub
+// and read when CallHandler is created, so a bad value stops startup.
 //-----------------------------------------------------------------------------
 public class CallMediaPipeline {
+
+	public enum RecordingMode {
+		DUAL, COMPOSITE;
+
+		//---------------------------------------------------------------------
+		// The mode set with -Drecording.mode (default DUAL).
+		//---------------------------------------------------------------------
+		public static RecordingMode fromProperty() {
+			String value = System.getProperty("recording.mode", "DUAL");
+			try {
+				return valueOf(value.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				throw new IllegalArgumentException("recording.mode must be "
+						+ Arrays.toString(values()) + ", not '" + value + "'");
+			}
+		}
+	}
 	
 	private static final SimpleDateFormat df = new SimpleDateFormat(
 			"yyyy-MM-dd_HH-mm-ss-S");
@@ -22,31 +52,58 @@ public class CallMediaPipeline {
 			+ df.format(new Date()) + "-";
 	public static final String RECORDING_EXT = ".webm";
 	
+	private final RecordingMode mode;
 	private MediaPipeline pipeline;
 	private WebRtcEndpoint webRtcCaller;
 	private WebRtcEndpoint webRtcCallee;
-	private RecorderEndpoint recorderCaller;
-	private RecorderEndpoint recorderCallee;
+	private MediaElement[] recordSources; // one per recording file
+	private String[] recordNames;         // file name of each source
+	private RecorderEndpoint[] recorders;
+	private RecorderEndpoint[] segments;
+	private long recordStart;
+	private long segmentsStart;
+	private long recordingSetupNanos;
+	private final List<String> recordingUris = new ArrayList<String>();
+	private String from;
+	private String to;
+	private final AtomicInteger spectatorCount = new AtomicInteger();
 	
 	//-------------------------------------------------------------------------
 	// Method to create media pipeline, instantiate WebRtcEndpoints for 
 	// caller and callee, and makes appropriate connections for a call.	
+	// Time spent is marked on setupTrace.
 	//-------------------------------------------------------------------------
-	public 	CallMediaPipeline(KurentoClient kurento, String from, String to) {
+	public 	CallMediaPipeline(KurentoClient kurento, String from, String to,
+			RecordingMode mode, CallSetupTrace setupTrace) {
 		
+		this.mode = mode;
+		this.from = from;
+		this.to = to;
+
 		// Media pipeline
 		pipeline = kurento.createMediaPipeline();
+		setupTrace.mark(CallSetupTrace.CREATE_PIPELINE);
 		
 		// Media Elements (WebRtcEndpoint, RecorderEndpoint, FaceOverlayFilter)
 		webRtcCaller = new WebRtcEndpoint.Builder(pipeline).build();
 		webRtcCallee = new WebRtcEndpoint.Builder(pipeline).build();
 		
-		recorderCaller =
-				new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + from
-						+ RECORDING_EXT).build();
-		recorderCallee =
-				new RecorderEndpoint.Builder(pipeline, RECORDING_PATH + to
-						+ RECORDING_EXT).build();
+		long setupStart = System.nanoTime();
+		if (mode == RecordingMode.COMPOSITE) {
+			Composite composite = new Composite.Builder(pipeline).build();
+			HubPort callerPort = new HubPort.Builder(composite).build();
+			HubPort calleePort = new HubPort.Builder(composite).build();
+			HubPort mixPort = new HubPort.Builder(composite).build();
+			webRtcCaller.connect(callerPort);
+			webRtcCallee.connect(calleePort);
+			recordSources = new MediaElement[] { mixPort };
+			recordNames = new String[] { matchName(from, to) };
+		} else {
+			recordSources = new MediaElement[] { webRtcCaller, webRtcCallee };
+			recordNames = new String[] { from, to };
+		}
+		recorders = createRecorders(null);
+		recordingSetupNanos += System.nanoTime() - setupStart;
 		
 		String appServerUrl =
 				System.getProperty("app.server.url",
@@ -74,15 +131,114 @@ public class CallMediaPipeline {
 		*/
 		
 		webRtcCaller.connect(webRtcCallee);
-		webRtcCaller.connect(recorderCaller);
 		webRtcCallee.connect(webRtcCaller);
-		webRtcCallee.connect(recorderCallee);
+		setupTrace.mark(CallSetupTrace.BUILD_ELEMENTS);
 	}
 	
 	//-----------------------------------------------------------
-	public void record() {
-		recorderCaller.record();
-		recorderCallee.record();
+	public synchronized void record() {
+		for (RecorderEndpoint recorder : recorders) {
+			recorder.record();
+		}
+		recordStart = System.currentTimeMillis();
+	}
+
+	//-----------------------------------------------------------
+	// A recorder per recording source, connected but not started.
+	//-----------------------------------------------------------
+	private RecorderEndpoint[] createRecorders(String segment) {
+		RecorderEndpoint[] created = new RecorderEndpoint[recordSources.length];
+		for (int i = 0; i < created.length; i++) {
+			String uri = recordingUri(recordNames[i], segment);
+			created[i] = new RecorderEndpoint.Builder(pipeline, uri).build();
+			recordSources[i].connect(created[i]);
+			recordingUris.add(uri);
+		}
+		return created;
+	}
+
+	//-----------------------------------------------------------
+	// Milliseconds since record() was called.
+	//-----------------------------------------------------------
+	public long getRecordingOffsetMs() {
+		return System.currentTimeMillis() - recordStart;
+	}
+
+	//-----------------------------------------------------------
+	// Starts recording a new segment file per recording (participant or
+	// match), named after segment, alongside the full-call recordings.
+	// The previous segment is stopped only once the new one is
+	// recording, so no media is lost between segments.
+	//-----------------------------------------------------------
+	public synchronized void startSegment(String segment) {
+		long setupStart = System.nanoTime();
+		RecorderEndpoint[] started = createRecorders(segment);
+		for (RecorderEndpoint recorder : started) {
+			recorder.record();
+		}
+
+		if (segments != null) {
+			for (RecorderEndpoint recorder : segments) {
+				recorder.stop();
+				recorder.release();
+			}
+		} else {
+			segmentsStart = System.currentTimeMillis();
+		}
+		segments = started;
+		recordingSetupNanos += System.nanoTime() - setupStart;
+	}
+
+	//-----------------------------------------------------------
+	// URI of a recording (a user's, or a match's in COMPOSITE mode),
+	// or of one of its segments.
+	//-----------------------------------------------------------
+	public static String recordingUri(String name, String segment) {
+		return RECORDING_PATH + name
+				+ (segment != null ? "-" + segment : "") + RECORDING_EXT;
+	}
+
+	//-----------------------------------------------------------
+	// URI of the recording, or segment, that contains user.
+	//-----------------------------------------------------------
+	public String getRecordingUri(String user, String segment) {
+		return recordingUri(
+				mode == RecordingMode.COMPOSITE ? matchName(from, to)
+						: user, segment);
+	}
+
+	static String matchName(String from, String to) {
+		return "match-" + from + "-" + to;
+	}
+
+	//-----------------------------------------------------------
+	// Recording cost (see RecordingCostMeter)
+	//-----------------------------------------------------------
+	public synchronized List<String> getRecordingUris() {
+		return new ArrayList<String>(recordingUris);
+	}
+
+	public synchronized int getRecorderCount() {
+		return recordingUris.size();
+	}
+
+	public synchronized long getRecordingSetupMs() {
+		return recordingSetupNanos / 1000000;
+	}
+
+	//-----------------------------------------------------------
+	// Total time recorders have been writing, summed over recorders.
+	//-----------------------------------------------------------
+	public synchronized long getRecorderMs() {
+		if (recordStart == 0) {
+			return 0;
+		}
+		long now = System.currentTimeMillis();
+		long ms = (now - recordStart) * recorders.length;
+		if (segments != null) {
+			ms += (now - segmentsStart) * segments.length;
+		}
+		return ms;
 	}
 	
 	//-----------------------------------------------------------
@@ -99,6 +255,49 @@ public class CallMediaPipeline {
 		return webRtcCallee.processOffer(sdpOffer);
 	}
 	
+	//-----------------------------------------------------------
+	// Adds a viewer: two receive-only endpoints, fed with the caller's
+	// and the callee's stream. Streams are fanned out as they are, with
+	// no decoding or mixing, so viewers add no work to the players' media
+	// path. Returns null if maxSpectators are already watching this match.
+	//-----------------------------------------------------------
+	public WebRtcEndpoint[] addSpectator(int maxSpectators) {
+		if (spectatorCount.incrementAndGet() > maxSpectators) {
+			spectatorCount.decrementAndGet();
+			return null;
+		}
+		WebRtcEndpoint callerView = new WebRtcEndpoint.Builder(pipeline)
+				.build();
+		WebRtcEndpoint calleeView = new WebRtcEndpoint.Builder(pipeline)
+				.build();
+		webRtcCaller.connect(callerView);
+		webRtcCallee.connect(calleeView);
+		return new WebRtcEndpoint[] { callerView, calleeView };
+	}
+
+	//-----------------------------------------------------------
+	public void removeSpectator(WebRtcEndpoint[] views) {
+		spectatorCount.decrementAndGet();
+		for (WebRtcEndpoint view : views) {
+			view.release();
+		}
+	}
+
+	//-----------------------------------------------------------
+	public String getFrom() {
+		return from;
+	}
+
+	//-----------------------------------------------------------
+	public String getTo() {
+		return to;
+	}
+
+	//-----------------------------------------------------------
+	public boolean hasPlayer(String user) {
+		return user.equals(from) || user.equals(to);
+	}
+
 	//-----------------------------------------------------------
 	public MediaPipeline getPipeline() {
 		return pipeline;
@@ -0,0 +1,298 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// WebRTC quality of live calls: packet loss, jitter, round-trip time and
+// received bitrate, per player, over a rolling window per match.
+//
+// Kurento 5 endpoints have no getStats, so every stats.interval.ms the
+// players of up to stats.max.matches.per.tick matches (rotating through all
+// of them) are sent a "getStats" request; their browsers answer with a
+// "stats" message read from RTCPeerConnection.getStats(). The last
+// stats.window.samples (at least 1) reports of each player are kept. A
+// match is flagged as degraded, and an alert logged, when a player's window
+// average crosses stats.alert.loss.pct, stats.alert.jitter.ms or
+// stats.alert.rtt.ms.
+//-----------------------------------------------------------------------------
+public class CallQualityMonitor {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(CallQualityMonitor.class);
+
+	private final long intervalMs = Long.getLong("stats.interval.ms", 5000);
+	private final int maxMatchesPerTick = Integer.getInteger(
+			"stats.max.matches.per.tick", 500);
+	private final int windowSamples = Integer.getInteger(
+			"stats.window.samples", 12);
+	private final double alertLossPct = Double.parseDouble(System.getProperty(
+			"stats.alert.loss.pct", "5"));
+	private final double alertJitterMs = Double.parseDouble(System
+			.getProperty("stats.alert.jitter.ms", "50"));
+	private final double alertRttMs = Double.parseDouble(System.getProperty(
+			"stats.alert.rtt.ms", "400"));
+
+	//-------------------------------------------------------------------------
+	// Rolling window of one player's reports. Loss is computed from the
+	// difference between consecutive cumulative packet counters.
+	//-------------------------------------------------------------------------
+	private class PlayerWindow {
+		final double[] lossPct = new double[windowSamples];
+		final double[] jitterMs = new double[windowSamples];
+		final double[] rttMs = new double[windowSamples];
+		final double[] kbps = new double[windowSamples];
+		int count;
+		int next;
+		long lastLost = -1;
+		long lastReceived = -1;
+
+		void add(long lost, long received, double jitter, double rtt,
+				double bitrate) {
+			double loss = 0;
+			if (lastReceived >= 0 && received >= lastReceived) {
+				long lostDelta = Math.max(0, lost - lastLost);
+				long total = lostDelta + received - lastReceived;
+				loss = (total > 0) ? 100.0 * lostDelta / total : 0;
+			}
+			lastLost = lost;
+			lastReceived = received;
+
+			lossPct[next] = loss;
+			jitterMs[next] = jitter;
+			rttMs[next] = rtt;
+			kbps[next] = bitrate;
+			next = (next + 1) % windowSamples;
+			count = Math.min(count + 1, windowSamples);
+		}
+
+		double average(double[] values) {
+			double sum = 0;
+			for (int i = 0; i < count; i++) {
+				sum += values[i];
+			}
+			return (count > 0) ? sum / count : 0;
+		}
+
+		boolean isDegraded() {
+			return count > 0
+					&& (average(lossPct) > alertLossPct
+							|| average(jitterMs) > alertJitterMs || average(rttMs) > alertRttMs);
+		}
+
+		Map<String, Object> toMap() {
+			Map<String, Object> map = new LinkedHashMap<String, Object>();
+			map.put("samples", count);
+			map.put("lossPct", average(lossPct));
+			map.put("jitterMs", average(jitterMs));
+			map.put("rttMs", average(rttMs));
+			map.put("kbps", average(kbps));
+			return map;
+		}
+	}
+
+	private class MatchQuality {
+		final Map<String, PlayerWindow> players = new LinkedHashMap<String, PlayerWindow>();
+		boolean degraded;
+	}
+
+	private final ConcurrentHashMap<CallMediaPipeline, MatchQuality> matches = new ConcurrentHashMap<CallMediaPipeline, MatchQuality>();
+	private final AtomicLong requests = new AtomicLong();
+	private final AtomicLong reports = new AtomicLong();
+	private final AtomicLong alerts = new AtomicLong();
+	private int cursor;
+	private ScheduledExecutorService sampler;
+
+	@Autowired
+	private CallHandler callHandler;
+
+	@Autowired
+	private UserRegistry registry;
+
+	public CallQualityMonitor() {
+		if (windowSamples < 1) {
+			throw new IllegalArgumentException("stats.window.samples ("
+					+ windowSamples + ") must be >= 1");
+		}
+	}
+
+	@PostConstruct
+	public void start() {
+		if (intervalMs <= 0) {
+			return;
+		}
+		sampler = Executors.newSingleThreadScheduledExecutor();
+		sampler.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					tick();
+				} catch (Exception e) {
+					log.error("Error requesting call stats", e);
+				}
+			}
+		}, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (sampler != null) {
+			sampler.shutdownNow();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the sampler thread: asks the players of the next batch of
+	// matches for their stats.
+	//-------------------------------------------------------------------------
+	private void tick() {
+		List<CallMediaPipeline> calls = new ArrayList<CallMediaPipeline>(
+				callHandler.getCalls());
+		if (calls.isEmpty()) {
+			return;
+		}
+		int batch = Math.min(calls.size(), maxMatchesPerTick);
+		cursor = cursor % calls.size();
+
+		JsonObject request = new JsonObject();
+		request.addProperty("id", CallHandler.MSG_S2C.GET_STATS);
+		for (int i = 0; i < batch; i++) {
+			CallMediaPipeline call = calls.get((cursor + i) % calls.size());
+			request(call.getFrom(), request);
+			request(call.getTo(), request);
+		}
+		cursor += batch;
+	}
+
+	private void request(String name, JsonObject request) {
+		UserSession user = registry.getByName(name);
+		if (user == null) {
+			return;
+		}
+		try {
+			user.sendMessage(request);
+			requests.incrementAndGet();
+		} catch (IOException e) {
+			log.debug("Could not request stats from '{}'", name);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// A "stats" message from a player of call: cumulative packetsLost and
+	// packetsReceived, jitterMs, rttMs and kbps of the received video.
+	//-------------------------------------------------------------------------
+	public void report(CallMediaPipeline call, String user, JsonObject stats) {
+		if (call == null || !call.hasPlayer(user)) {
+			return;
+		}
+		reports.incrementAndGet();
+
+		MatchQuality match = matches.get(call);
+		if (match == null) {
+			MatchQuality created = new MatchQuality();
+			match = matches.putIfAbsent(call, created);
+			if (match == null) {
+				match = created;
+			}
+		}
+
+		synchronized (match) {
+			PlayerWindow window = match.players.get(user);
+			if (window == null) {
+				window = new PlayerWindow();
+				match.players.put(user, window);
+			}
+			window.add(getLong(stats, "packetsLost"),
+					getLong(stats, "packetsReceived"),
+					getDouble(stats, "jitterMs"), getDouble(stats, "rttMs"),
+					getDouble(stats, "kbps"));
+
+			boolean degraded = false;
+			for (PlayerWindow player : match.players.values()) {
+				degraded |= player.isDegraded();
+			}
+			if (degraded && !match.degraded) {
+				alerts.incrementAndGet();
+				log.warn("Degraded call {} <-> {}: {}", call.getFrom(),
+						call.getTo(), toMap(match));
+			} else if (!degraded && match.degraded) {
+				log.info("Call {} <-> {} recovered", call.getFrom(),
+						call.getTo());
+			}
+			match.degraded = degraded;
+		}
+	}
+
+	public void endMatch(CallMediaPipeline call) {
+		matches.remove(call);
+	}
+
+	private static long getLong(JsonObject json, String key) {
+		return json.has(key) ? json.get(key).getAsLong() : 0;
+	}
+
+	private static double getDouble(JsonObject json, String key) {
+		return json.has(key) ? json.get(key).getAsDouble() : 0;
+	}
+
+	private static Map<String, Object> toMap(MatchQuality match) {
+		Map<String, Object> players = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, PlayerWindow> entry : match.players.entrySet()) {
+			players.put(entry.getKey(), entry.getValue().toMap());
+		}
+		return players;
+	}
+
+	//-------------------------------------------------------------------------
+	// Metrics: counters, and the window averages of every match (or only
+	// degraded ones).
+	//-------------------------------------------------------------------------
+	public Map<String, Object> snapshot(boolean degradedOnly) {
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("intervalMs", intervalMs);
+		stats.put("requests", requests.get());
+		stats.put("reports", reports.get());
+		stats.put("alerts", alerts.get());
+
+		List<Map<String, Object>> calls = new ArrayList<Map<String, Object>>();
+		int degraded = 0;
+		for (Map.Entry<CallMediaPipeline, MatchQuality> entry : matches
+				.entrySet()) {
+			MatchQuality match = entry.getValue();
+			synchronized (match) {
+				if (match.degraded) {
+					degraded++;
+				} else if (degradedOnly) {
+					continue;
+				}
+				Map<String, Object> call = new LinkedHashMap<String, Object>();
+				call.put("from", entry.getKey().getFrom());
+				call.put("to", entry.getKey().getTo());
+				call.put("degraded", match.degraded);
+				call.put("players", toMap(match));
+				calls.add(call);
+			}
+		}
+		stats.put("matches", matches.size());
+		stats.put("degraded", degraded);
+		stats.put("calls", calls);
+		return stats;
+	}
+}
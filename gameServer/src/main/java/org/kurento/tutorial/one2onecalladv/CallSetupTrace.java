@@ -0,0 +1,80 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//-----------------------------------------------------------------------------
+// Timeline of one match from the caller's "call" message until the game
+// starts. Spans are consecutive: mark(name) ends the span that began at the
+// previous mark (or at "call"), so together they add up to the total setup
+// time. Shared by both players' UserSessions; marks may come from different
+// threads.
+//-----------------------------------------------------------------------------
+public class CallSetupTrace {
+
+	// Span names, in the order they normally happen
+	final static String INCOMING_CALL = "incomingCall";       // callee notified
+	final static String CALLEE_ACCEPT = "calleeAccept";       // callee answered
+	final static String CREATE_PIPELINE = "createMediaPipeline";
+	final static String BUILD_ELEMENTS = "buildElements";     // endpoints + connects
+	final static String OFFER_CALLEE = "processOfferCallee";
+	final static String OFFER_CALLER = "processOfferCaller";
+	final static String RECORD = "record";
+	final static String CONFIRM_VIDEO = "confirmVideo";       // both saw video
+	final static String START_GAME = "startGame";             // both pressed start
+
+	private final String caller;
+	private final String callee;
+	private final long startedAt = System.currentTimeMillis();
+	private final Map<String, Long> spansUs = new LinkedHashMap<String, Long>();
+	private long lastMark = System.nanoTime();
+	private boolean closed;
+
+	public CallSetupTrace(String caller, String callee) {
+		this.caller = caller;
+		this.callee = callee;
+	}
+
+	public synchronized void mark(String span) {
+		long now = System.nanoTime();
+		if (!closed) {
+			spansUs.put(span, (now - lastMark) / 1000);
+		}
+		lastMark = now;
+	}
+
+	// True the first time only, so a trace is stored or dropped once.
+	synchronized boolean close() {
+		if (closed) {
+			return false;
+		}
+		closed = true;
+		return true;
+	}
+
+	synchronized Map<String, Long> getSpansUs() {
+		return new LinkedHashMap<String, Long>(spansUs);
+	}
+
+	synchronized long getTotalUs() {
+		long total = 0;
+		for (long us : spansUs.values()) {
+			total += us;
+		}
+		return total;
+	}
+
+	public Map<String, Object> toMap() {
+		Map<String, Object> map = new LinkedHashMap<String, Object>();
+		map.put("caller", caller);
+		map.put("callee", callee);
+		map.put("time", startedAt);
+		Map<String, Double> spans = new LinkedHashMap<String, Double>();
+		for (Map.Entry<String, Long> span : getSpansUs().entrySet()) {
+			spans.put(span.getKey(), span.getValue() / 1000.0);
+		}
+		map.put("spansMs", spans);
+		map.put("totalMs", getTotalUs() / 1000.0);
+		return map;
+	}
+}
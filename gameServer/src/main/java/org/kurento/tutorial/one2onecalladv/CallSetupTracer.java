@@ -0,0 +1,112 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+//-----------------------------------------------------------------------------
+// Keeps the most recent completed CallSetupTraces (setuptrace.store.size,
+// default 1000, at least 1) and summarizes them as per-span percentiles,
+// to show which step of call setup is slow. Matches that end before the
+// game starts are only counted.
+//-----------------------------------------------------------------------------
+public class CallSetupTracer {
+
+	final static String TOTAL = "total";
+	final static int[] PERCENTILES = { 50, 90, 99 };
+
+	private final int capacity = Math.max(1, Integer.getInteger(
+			"setuptrace.store.size", 1000));
+	private final ArrayDeque<CallSetupTrace> completed = new ArrayDeque<CallSetupTrace>();
+	private final AtomicLong abandoned = new AtomicLong();
+
+	//-------------------------------------------------------------------------
+	// Stores a trace whose game has started, evicting the oldest if full.
+	//-------------------------------------------------------------------------
+	public void complete(CallSetupTrace trace) {
+		if (trace == null || !trace.close()) {
+			return;
+		}
+		synchronized (completed) {
+			while (completed.size() >= capacity) {
+				completed.removeFirst();
+			}
+			completed.addLast(trace);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Drops a trace whose call was rejected or ended during setup.
+	//-------------------------------------------------------------------------
+	public void abandon(CallSetupTrace trace) {
+		if (trace != null && trace.close()) {
+			abandoned.incrementAndGet();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Percentiles and maximum of each span, and of the total, over the
+	// stored traces, in milliseconds. Also the last `recent` traces.
+	//-------------------------------------------------------------------------
+	public Map<String, Object> summary(int recent) {
+		List<CallSetupTrace> traces;
+		synchronized (completed) {
+			traces = new ArrayList<CallSetupTrace>(completed);
+		}
+
+		Map<String, List<Long>> samples = new LinkedHashMap<String, List<Long>>();
+		List<Long> totals = new ArrayList<Long>(traces.size());
+		for (CallSetupTrace trace : traces) {
+			for (Map.Entry<String, Long> span : trace.getSpansUs().entrySet()) {
+				List<Long> values = samples.get(span.getKey());
+				if (values == null) {
+					values = new ArrayList<Long>(traces.size());
+					samples.put(span.getKey(), values);
+				}
+				values.add(span.getValue());
+			}
+			totals.add(trace.getTotalUs());
+		}
+		samples.put(TOTAL, totals);
+
+		Map<String, Object> spans = new LinkedHashMap<String, Object>();
+		for (Map.Entry<String, List<Long>> entry : samples.entrySet()) {
+			spans.put(entry.getKey(), percentiles(entry.getValue()));
+		}
+
+		List<Map<String, Object>> last = new ArrayList<Map<String, Object>>();
+		for (int i = Math.max(0, traces.size() - recent); i < traces.size(); i++) {
+			last.add(traces.get(i).toMap());
+		}
+
+		Map<String, Object> summary = new LinkedHashMap<String, Object>();
+		summary.put("completed", traces.size());
+		summary.put("abandoned", abandoned.get());
+		summary.put("spans", spans);
+		summary.put("recent", last);
+		return summary;
+	}
+
+	private static Map<String, Object> percentiles(List<Long> values) {
+		Map<String, Object> result = new LinkedHashMap<String, Object>();
+		result.put("count", values.size());
+		if (values.isEmpty()) {
+			return result;
+		}
+		long[] sorted = new long[values.size()];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = values.get(i);
+		}
+		Arrays.sort(sorted);
+		for (int p : PERCENTILES) {
+			int rank = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+			result.put("p" + p + "Ms", sorted[Math.max(0, rank)] / 1000.0);
+		}
+		result.put("maxMs", sorted[sorted.length - 1] / 1000.0);
+		return result;
+	}
+}
@@ -0,0 +1,97 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// Inter-node signaling channel (see ClusterNode). Each call carries a small
+// JSON object; 404 means the user is no longer known on this node, 403 that
+// clustering is off or the shared secret does not match.
+//-----------------------------------------------------------------------------
+@RestController
+@RequestMapping(value = "/cluster", method = RequestMethod.POST)
+public class ClusterController {
+
+	private static final Gson gson = new Gson();
+
+	@Autowired
+	private ClusterNode cluster;
+
+	//-------------------------------------------------------------------------
+	// {name, from, payload}: message for a user connected to this node.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/deliver")
+	public ResponseEntity<Void> deliver(
+			@RequestHeader(value = ClusterNode.SECRET_HEADER, required = false) String secret,
+			@RequestBody String body) throws Exception {
+		if (!cluster.isAuthorized(secret)) {
+			return status(HttpStatus.FORBIDDEN);
+		}
+		JsonObject message = gson.fromJson(body, JsonObject.class);
+		return found(cluster.onDeliver(message.get("name").getAsString(),
+				message.get("from").getAsString(), message.get("payload")
+						.getAsString()));
+	}
+
+	//-------------------------------------------------------------------------
+	// {name, payload}: frame from a remote user whose match is hosted here.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/relay")
+	public ResponseEntity<Void> relay(
+			@RequestHeader(value = ClusterNode.SECRET_HEADER, required = false) String secret,
+			@RequestBody String body) throws Exception {
+		if (!cluster.isAuthorized(secret)) {
+			return status(HttpStatus.FORBIDDEN);
+		}
+		JsonObject message = gson.fromJson(body, JsonObject.class);
+		return found(cluster.onRelay(message.get("name").getAsString(),
+				message.get("payload").getAsString()));
+	}
+
+	//-------------------------------------------------------------------------
+	// {name, from}: the node hosting the match of a user connected here
+	// released it.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/released")
+	public ResponseEntity<Void> released(
+			@RequestHeader(value = ClusterNode.SECRET_HEADER, required = false) String secret,
+			@RequestBody String body) throws Exception {
+		if (!cluster.isAuthorized(secret)) {
+			return status(HttpStatus.FORBIDDEN);
+		}
+		JsonObject message = gson.fromJson(body, JsonObject.class);
+		return found(cluster.onReleased(message.get("name").getAsString(),
+				message.get("from").getAsString()));
+	}
+
+	//-------------------------------------------------------------------------
+	// {name}: a remote user whose match is hosted here disconnected.
+	//-------------------------------------------------------------------------
+	@RequestMapping("/closed")
+	public ResponseEntity<Void> closed(
+			@RequestHeader(value = ClusterNode.SECRET_HEADER, required = false) String secret,
+			@RequestBody String body) throws Exception {
+		if (!cluster.isAuthorized(secret)) {
+			return status(HttpStatus.FORBIDDEN);
+		}
+		JsonObject message = gson.fromJson(body, JsonObject.class);
+		return found(cluster.onRemoteClosed(message.get("name").getAsString()));
+	}
+
+	private static ResponseEntity<Void> found(boolean found) {
+		return status(found ? HttpStatus.OK : HttpStatus.NOT_FOUND);
+	}
+
+	private static ResponseEntity<Void> status(HttpStatus status) {
+		return new ResponseEntity<Void>(status);
+	}
+}
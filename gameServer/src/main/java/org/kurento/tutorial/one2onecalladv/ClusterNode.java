@@ -0,0 +1,372 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// Lets several signaling nodes behind a load balancer act as one server.
+// Enabled by setting cluster.node.url to this node's base URL as seen by
+// the other nodes; without it every method is a no-op and the server runs
+// standalone.
+//
+// User names are owned through a PresenceDirectory (cluster.directory.class,
+// LocalPresenceDirectory by default). A match is hosted on the caller's
+// node: when the callee is registered elsewhere, a RemoteWebSocketSession
+// stands in for it here and the callee's node relays its frames to us and
+// our replies back to its socket. When the match ends, or the call is
+// rejected, the stand-in is dropped and the callee's node handles the user
+// again. Nodes talk over plain HTTP POSTs to ClusterController,
+// authenticated with cluster.secret, which is required when clustering is
+// enabled. Messages naming their sender are only accepted from nodes that
+// joined the directory. Messages to remote users are queued and posted by
+// a sender thread per node, since they are sent with player locks held.
+//-----------------------------------------------------------------------------
+public class ClusterNode {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ClusterNode.class);
+
+	final static String SECRET_HEADER = "X-Cluster-Secret";
+
+	private final String nodeUrl = System.getProperty("cluster.node.url");
+	private final String secret = System.getProperty("cluster.secret");
+	private final int timeoutMs = Integer.getInteger("cluster.http.timeout.ms",
+			2000);
+	private final int sendQueue = Integer.getInteger("cluster.send.queue", 256);
+	private final PresenceDirectory directory;
+
+	// Local sessions whose match is hosted on another node -> that node
+	private final ConcurrentHashMap<String, String> relays = new ConcurrentHashMap<String, String>();
+	// Remote users in a match hosted here -> their stand-in session
+	private final ConcurrentHashMap<String, RemoteWebSocketSession> proxies = new ConcurrentHashMap<String, RemoteWebSocketSession>();
+	// Node -> the thread posting messages to its users, in order
+	private final ConcurrentHashMap<String, ExecutorService> senders = new ConcurrentHashMap<String, ExecutorService>();
+
+	@Autowired
+	private UserRegistry registry;
+
+	@Autowired
+	private CallHandler callHandler;
+
+	@Autowired
+	private ProtocolTrace trace;
+
+	@Autowired
+	private RateLimiter rateLimiter;
+
+	public ClusterNode() throws ReflectiveOperationException {
+		if (nodeUrl != null && (secret == null || secret.isEmpty())) {
+			throw new IllegalStateException(
+					"cluster.secret is required when cluster.node.url is set");
+		}
+		String directoryClass = System.getProperty("cluster.directory.class");
+		directory = (directoryClass != null) ? Class.forName(directoryClass)
+				.asSubclass(PresenceDirectory.class).getDeclaredConstructor()
+				.newInstance() : new LocalPresenceDirectory();
+		if (nodeUrl != null) {
+			directory.join(nodeUrl);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		for (ExecutorService sender : senders.values()) {
+			sender.shutdownNow();
+		}
+	}
+
+	public boolean isEnabled() {
+		return nodeUrl != null;
+	}
+
+	public String getNodeUrl() {
+		return nodeUrl;
+	}
+
+	public boolean isAuthorized(String secretHeader) {
+		return isEnabled()
+				&& secretHeader != null
+				&& MessageDigest.isEqual(
+						secret.getBytes(StandardCharsets.UTF_8),
+						secretHeader.getBytes(StandardCharsets.UTF_8));
+	}
+
+	// A node other than this one that joined the cluster.
+	private boolean isPeerNode(String node) {
+		return node != null && !node.equals(nodeUrl)
+				&& directory.isMember(node);
+	}
+
+	//-------------------------------------------------------------------------
+	// Registration: false if the name is already registered on another node.
+	//-------------------------------------------------------------------------
+	public boolean claim(String name) {
+		return !isEnabled() || directory.claim(name, nodeUrl);
+	}
+
+	//-------------------------------------------------------------------------
+	// Called when a registered session on this node goes away, whether it is
+	// a real socket or a stand-in for a remote user.
+	//-------------------------------------------------------------------------
+	public void sessionClosed(WebSocketSession session, UserSession user) {
+		if (!isEnabled()) {
+			return;
+		}
+		proxies.remove(user.getName(), session);
+		String host = relays.remove(session.getId());
+		if (host == null) {
+			directory.release(user.getName(), nodeUrl);
+			return;
+		}
+		JsonObject message = new JsonObject();
+		message.addProperty("name", user.getName());
+		try {
+			post(host, "/cluster/closed", message);
+		} catch (IOException e) {
+			log.warn("Could not tell {} that '{}' left: {}", host,
+					user.getName(), e.getMessage());
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Hosting side. Makes a user registered on another node available here
+	// for a call, moving its directory entry to this node. Returns null if
+	// the user is not registered anywhere else.
+	//-------------------------------------------------------------------------
+	public UserSession attachRemote(String name) {
+		if (!isEnabled()) {
+			return null;
+		}
+		String node = directory.lookup(name);
+		if (node == null || node.equals(nodeUrl)) {
+			return null;
+		}
+		RemoteWebSocketSession proxy = new RemoteWebSocketSession(this, node,
+				name);
+		UserSession user = new UserSession(proxy, name, trace);
+		// Relayed frames get the same limits as those of local sockets
+		rateLimiter.add(proxy);
+		proxies.put(name, proxy);
+		registry.register(user);
+		directory.transfer(name, nodeUrl);
+		log.debug("Attached '{}' from node {}", name, node);
+		return user;
+	}
+
+	void deliverRemote(String node, String name, String payload)
+			throws IOException {
+		JsonObject message = new JsonObject();
+		message.addProperty("name", name);
+		message.addProperty("from", nodeUrl);
+		message.addProperty("payload", payload);
+		send(node, "/cluster/deliver", message);
+	}
+
+	// A frame from a remote user's socket, relayed by its node.
+	public boolean onRelay(String name, String payload) throws Exception {
+		RemoteWebSocketSession proxy = proxies.get(name);
+		if (proxy == null) {
+			return false;
+		}
+		callHandler.handleTextMessage(proxy, new TextMessage(payload));
+		return true;
+	}
+
+	// The remote user's socket closed on its node.
+	public boolean onRemoteClosed(String name) throws Exception {
+		RemoteWebSocketSession proxy = proxies.get(name);
+		if (proxy == null) {
+			return false;
+		}
+		proxy.close();
+		callHandler.afterConnectionClosed(proxy, CloseStatus.NORMAL);
+		return true;
+	}
+
+	//-------------------------------------------------------------------------
+	// Owning side. A message from the node hosting the user's match, to be
+	// written to the user's socket here; from then on the user's frames are
+	// relayed to that node.
+	//-------------------------------------------------------------------------
+	public boolean onDeliver(String name, String from, String payload)
+			throws IOException {
+		UserSession user = registry.getByName(name);
+		if (user == null || !isPeerNode(from)) {
+			return false;
+		}
+		relays.put(user.getSessionId(), from);
+		SessionWriter.send(user.getSession(), new TextMessage(payload));
+		return true;
+	}
+
+	//-------------------------------------------------------------------------
+	// Hosting side. The match of a user attached from another node ended,
+	// or the user rejected the call: drops the stand-in and tells the user's
+	// node to handle its frames again. No-op for local users.
+	//-------------------------------------------------------------------------
+	public void detach(UserSession user) {
+		if (user == null
+				|| !(user.getSession() instanceof RemoteWebSocketSession)) {
+			return;
+		}
+		RemoteWebSocketSession proxy = (RemoteWebSocketSession) user
+				.getSession();
+		if (!proxies.remove(user.getName(), proxy)) {
+			return;
+		}
+		registry.removeBySession(proxy);
+		rateLimiter.remove(proxy);
+		JsonObject message = new JsonObject();
+		message.addProperty("name", user.getName());
+		message.addProperty("from", nodeUrl);
+		try {
+			proxy.close();
+			// Queued after the user's last messages, so they still go out
+			send(proxy.getNode(), "/cluster/released", message);
+		} catch (IOException e) {
+			// Its node falls back to local handling on the next relay
+			log.warn("Could not release '{}' to {}: {}", user.getName(),
+					proxy.getNode(), e.getMessage());
+		}
+		log.debug("Detached '{}' back to node {}", user.getName(),
+				proxy.getNode());
+	}
+
+	//-------------------------------------------------------------------------
+	// Owning side. The node hosting the user's match no longer needs it:
+	// the user's frames are handled here again.
+	//-------------------------------------------------------------------------
+	public boolean onReleased(String name, String from) {
+		UserSession user = registry.getByName(name);
+		if (user == null || !isPeerNode(from)) {
+			return false;
+		}
+		if (relays.remove(user.getSessionId(), from)) {
+			directory.transfer(name, nodeUrl);
+		}
+		return true;
+	}
+
+	//-------------------------------------------------------------------------
+	// Forwards an inbound frame to the node hosting the session's match.
+	// Returns false if the frame is to be handled here, including when the
+	// host no longer knows the user.
+	//-------------------------------------------------------------------------
+	public boolean relay(WebSocketSession session, String payload) {
+		String host = relays.get(session.getId());
+		if (host == null) {
+			return false;
+		}
+		UserSession user = registry.getBySession(session);
+		JsonObject message = new JsonObject();
+		message.addProperty("name", user.getName());
+		message.addProperty("payload", payload);
+		try {
+			post(host, "/cluster/relay", message);
+			return true;
+		} catch (IOException e) {
+			log.warn("Relay of '{}' to {} failed, handling locally: {}",
+					user.getName(), host, e.getMessage());
+			relays.remove(session.getId(), host);
+			directory.transfer(user.getName(), nodeUrl);
+			return false;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Hosting side. Queues a message about a user attached from another
+	// node, to be posted in order by that node's sender thread, so callers
+	// holding player locks never wait on the network. Only fails if the
+	// node's queue (cluster.send.queue) is full; posts that fail later are
+	// logged and dropped.
+	//-------------------------------------------------------------------------
+	private void send(final String node, final String path,
+			final JsonObject message) throws IOException {
+		try {
+			sender(node).execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						post(node, path, message);
+					} catch (IOException e) {
+						log.warn("Post of {} for '{}' to {} failed: {}", path,
+								message.get("name").getAsString(), node,
+								e.getMessage());
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			throw new IOException("send queue to " + node + " is full");
+		}
+	}
+
+	private ExecutorService sender(String node) {
+		ExecutorService sender = senders.get(node);
+		if (sender == null) {
+			// No thread is started until the first message
+			ExecutorService created = new ThreadPoolExecutor(1, 1, 0,
+					TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(
+							sendQueue));
+			sender = senders.putIfAbsent(node, created);
+			if (sender == null) {
+				sender = created;
+			}
+		}
+		return sender;
+	}
+
+	private void post(String node, String path, JsonObject message)
+			throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(node + path)
+				.openConnection();
+		connection.setConnectTimeout(timeoutMs);
+		connection.setReadTimeout(timeoutMs);
+		connection.setDoOutput(true);
+		connection.setRequestMethod("POST");
+		connection.setRequestProperty("Content-Type", "application/json");
+		connection.setRequestProperty(SECRET_HEADER, secret);
+		OutputStream out = connection.getOutputStream();
+		try {
+			out.write(message.toString().getBytes(StandardCharsets.UTF_8));
+		} finally {
+			out.close();
+		}
+		int status = connection.getResponseCode();
+		connection.disconnect();
+		if (status != HttpURLConnection.HTTP_OK) {
+			throw new IOException(node + path + " returned " + status);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Metrics
+	//-------------------------------------------------------------------------
+	public int getRelayCount() {
+		return relays.size();
+	}
+
+	public int getProxyCount() {
+		return proxies.size();
+	}
+}
@@ -0,0 +1,132 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ApplicationContext;
+
+//-----------------------------------------------------------------------------
+// Graceful drain for rolling deployments. Once started (from the admin
+// endpoint) new registrations and calls are refused, while running matches
+// play to the end of their game. With drain.redirect.url set to the base
+// URL of another server, refusals carry it as "redirect" and clients move
+// their WebSocket there and register again. The process exits when no game is in progress or after
+// drain.deadline.sec seconds, whichever comes first; pipelines are released
+// on shutdown so recordings are finalized.
+//-----------------------------------------------------------------------------
+public class DrainManager {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(DrainManager.class);
+
+	final static long CHECK_INTERVAL_MS = 1000;
+
+	private final long deadlineSec = Long.getLong("drain.deadline.sec", 900);
+	private final String redirectUrl = System.getProperty("drain.redirect.url");
+
+	private volatile boolean draining;
+	private volatile long startedAt;
+	private volatile int activeMatches;
+	private final AtomicLong refused = new AtomicLong();
+
+	private ScheduledExecutorService checker;
+
+	@Autowired
+	private CallHandler callHandler;
+
+	@Autowired
+	private ApplicationContext context;
+
+	//-------------------------------------------------------------------------
+	// Starts draining. Returns false if a drain is already under way.
+	//-------------------------------------------------------------------------
+	public synchronized boolean start() {
+		if (draining) {
+			return false;
+		}
+		startedAt = System.currentTimeMillis();
+		draining = true;
+		log.info("Draining: refusing new matches, deadline {} s", deadlineSec);
+
+		checker = Executors.newSingleThreadScheduledExecutor();
+		checker.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				check();
+			}
+		}, 0, CHECK_INTERVAL_MS, TimeUnit.MILLISECONDS);
+		return true;
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (checker != null) {
+			checker.shutdownNow();
+		}
+	}
+
+	private void check() {
+		activeMatches = callHandler.getActiveMatchCount();
+		long elapsedSec = (System.currentTimeMillis() - startedAt) / 1000;
+		if (activeMatches > 0 && elapsedSec < deadlineSec) {
+			return;
+		}
+
+		log.info("Drain finished after {} s with {} matches in progress",
+				elapsedSec, activeMatches);
+		checker.shutdown();
+		exit();
+	}
+
+	void exit() {
+		// From a fresh thread: closing the context shuts the checker down.
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				System.exit(SpringApplication.exit(context));
+			}
+		}, "drain-exit").start();
+	}
+
+	//-------------------------------------------------------------------------
+	// Called for each register/call refused because of the drain.
+	//-------------------------------------------------------------------------
+	public void countRefused() {
+		refused.incrementAndGet();
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	public String getRedirectUrl() {
+		return redirectUrl;
+	}
+
+	//-------------------------------------------------------------------------
+	// Metrics
+	//-------------------------------------------------------------------------
+	public long getElapsedSec() {
+		return draining ? (System.currentTimeMillis() - startedAt) / 1000 : 0;
+	}
+
+	public long getDeadlineSec() {
+		return deadlineSec;
+	}
+
+	public int getActiveMatches() {
+		return draining ? activeMatches : callHandler.getActiveMatchCount();
+	}
+
+	public long getRefused() {
+		return refused.get();
+	}
+}
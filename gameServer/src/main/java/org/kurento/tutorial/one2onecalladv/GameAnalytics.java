@@ -0,0 +1,280 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.kurento.tutorial.one2onecalladv.UserSession.Role;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.gson.Gson;
+
+//-----------------------------------------------------------------------------
+// Running statistics over game outcomes, updated as each phase is entered:
+//   - per phase: how many matches entered it (drop-off between phases)
+//   - per role: games won, lost or left undecided after each decision
+//   - per image: correct, wrong and missing (timed out or abandoned)
+//     decisions in each decision phase, with the resulting accuracy, and
+//     how often the hint changed or corrected the interrogator's mind
+// A decision is correct when it matches the game's truth (UserSession.truth,
+// what the describer was asked to do). Snapshots are appended as one JSON
+// line every analytics.snapshot.sec seconds to analytics.snapshot.file
+// (system properties).
+//-----------------------------------------------------------------------------
+public class GameAnalytics implements GamePhaseEngine.PhaseListener {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(GameAnalytics.class);
+	private static final Gson gson = new Gson();
+
+	final static String TRUTH = "truth";
+
+	enum Decision {
+		FIRST, SECOND
+	}
+
+	enum Outcome {
+		CORRECT, WRONG, UNKNOWN
+	}
+
+	enum Result {
+		WON, LOST, UNDECIDED
+	}
+
+	enum ImageCounter {
+		GAMES, CHANGED_AFTER_HINT, CORRECTED_AFTER_HINT
+	}
+
+	private static final int DECISIONS = Decision.values().length;
+	private static final int OUTCOMES = Outcome.values().length;
+	private static final int RESULTS = Result.values().length;
+
+	//-------------------------------------------------------------------------
+	// A row of counters spread over several stripes so that concurrent games
+	// finishing on different threads rarely touch the same cache line.
+	// Reads sum the stripes.
+	//-------------------------------------------------------------------------
+	static class StripedCounters {
+		private static final int STRIPES = 8;
+		private static final int PAD = 8; // longs per 64-byte cache line
+
+		private final int stride;
+		private final AtomicLongArray cells;
+
+		StripedCounters(int width) {
+			this.stride = (width + PAD - 1) / PAD * PAD + PAD;
+			this.cells = new AtomicLongArray(stride * STRIPES);
+		}
+
+		void increment(int index) {
+			int stripe = (int) (Thread.currentThread().getId() % STRIPES);
+			cells.incrementAndGet(stripe * stride + index);
+		}
+
+		long get(int index) {
+			long sum = 0;
+			for (int stripe = 0; stripe < STRIPES; stripe++) {
+				sum += cells.get(stripe * stride + index);
+			}
+			return sum;
+		}
+	}
+
+	private final StripedCounters byPhase = new StripedCounters(
+			GameState.values().length);
+	// [role][decision][result]
+	private final StripedCounters byRole = new StripedCounters(
+			Role.values().length * DECISIONS * RESULTS);
+	// [decision][outcome], then the ImageCounters
+	private final ConcurrentHashMap<String, StripedCounters> byImage = new ConcurrentHashMap<String, StripedCounters>();
+
+	private final long snapshotSec = Long.getLong("analytics.snapshot.sec",
+			300);
+	private final String snapshotFile = System.getProperty(
+			"analytics.snapshot.file", "/tmp/game-analytics.jsonl");
+	private ScheduledExecutorService exporter;
+
+	@Autowired
+	private GamePhaseEngine phases;
+
+	@PostConstruct
+	public void start() {
+		phases.addListener(this);
+		if (snapshotSec > 0) {
+			exporter = Executors.newSingleThreadScheduledExecutor();
+			exporter.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					exportSnapshot();
+				}
+			}, snapshotSec, snapshotSec, TimeUnit.SECONDS);
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (exporter != null) {
+			exporter.shutdownNow();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Counts the phase for the match and, when the game is over, its outcome.
+	//-------------------------------------------------------------------------
+	public void onEnter(GameState state, UserSession a, UserSession b) {
+		byPhase.increment(state.ordinal());
+		if (state != GameState.POST_SURVEY) {
+			return;
+		}
+
+		Outcome first = outcome(a.truth, a.firstDecision);
+		Outcome second = outcome(a.truth, a.secondDecision);
+
+		for (UserSession player : new UserSession[] { a, b }) {
+			if (player.role != null) {
+				byRole.increment(roleIndex(player.role, Decision.FIRST,
+						result(player.role, first)));
+				byRole.increment(roleIndex(player.role, Decision.SECOND,
+						result(player.role, second)));
+			}
+		}
+
+		String imageName = (a.imageName != null) ? a.imageName : "none";
+		StripedCounters image = byImage.get(imageName);
+		if (image == null) {
+			StripedCounters created = new StripedCounters(DECISIONS
+					* OUTCOMES + ImageCounter.values().length);
+			image = byImage.putIfAbsent(imageName, created);
+			if (image == null) {
+				image = created;
+			}
+		}
+		image.increment(imageIndex(ImageCounter.GAMES));
+		image.increment(outcomeIndex(Decision.FIRST, first));
+		image.increment(outcomeIndex(Decision.SECOND, second));
+		if (a.firstDecision != null && a.secondDecision != null
+				&& !a.firstDecision.equals(a.secondDecision)) {
+			image.increment(imageIndex(ImageCounter.CHANGED_AFTER_HINT));
+		}
+		if (first == Outcome.WRONG && second == Outcome.CORRECT) {
+			image.increment(imageIndex(ImageCounter.CORRECTED_AFTER_HINT));
+		}
+	}
+
+	static Outcome outcome(String truth, String decision) {
+		if (truth == null || decision == null) {
+			return Outcome.UNKNOWN;
+		}
+		return truth.equals(decision) ? Outcome.CORRECT : Outcome.WRONG;
+	}
+
+	// The interrogator wins on a correct decision, the describer on a
+	// wrong one.
+	static Result result(Role role, Outcome outcome) {
+		if (outcome == Outcome.UNKNOWN || role == Role.NONE) {
+			return Result.UNDECIDED;
+		}
+		boolean correct = (outcome == Outcome.CORRECT);
+		return (correct == (role == Role.INTERROGATOR)) ? Result.WON
+				: Result.LOST;
+	}
+
+	private static int roleIndex(Role role, Decision decision, Result result) {
+		return (role.ordinal() * DECISIONS + decision.ordinal()) * RESULTS
+				+ result.ordinal();
+	}
+
+	private static int outcomeIndex(Decision decision, Outcome outcome) {
+		return decision.ordinal() * OUTCOMES + outcome.ordinal();
+	}
+
+	private static int imageIndex(ImageCounter counter) {
+		return DECISIONS * OUTCOMES + counter.ordinal();
+	}
+
+	//-------------------------------------------------------------------------
+	// Current totals; cost depends only on the number of images, not games.
+	// Accuracy is correct / (correct + wrong), null before any decision.
+	//-------------------------------------------------------------------------
+	public Map<String, Object> snapshot() {
+		Map<String, Object> snapshot = new LinkedHashMap<String, Object>();
+		snapshot.put("time", System.currentTimeMillis());
+
+		Map<String, Long> phaseCounts = new LinkedHashMap<String, Long>();
+		for (GameState state : GameState.values()) {
+			phaseCounts.put(state.name(), byPhase.get(state.ordinal()));
+		}
+		snapshot.put("phases", phaseCounts);
+
+		Map<String, Object> roles = new LinkedHashMap<String, Object>();
+		for (Role role : Role.values()) {
+			if (role == Role.NONE) {
+				continue;
+			}
+			Map<String, Object> decisions = new LinkedHashMap<String, Object>();
+			for (Decision decision : Decision.values()) {
+				Map<String, Long> results = new LinkedHashMap<String, Long>();
+				for (Result result : Result.values()) {
+					results.put(result.name(),
+							byRole.get(roleIndex(role, decision, result)));
+				}
+				decisions.put(decision.name(), results);
+			}
+			roles.put(role.name(), decisions);
+		}
+		snapshot.put("roles", roles);
+
+		Map<String, Map<String, Object>> images = new LinkedHashMap<String, Map<String, Object>>();
+		for (Map.Entry<String, StripedCounters> entry : byImage.entrySet()) {
+			StripedCounters image = entry.getValue();
+			Map<String, Object> counts = new LinkedHashMap<String, Object>();
+			for (ImageCounter counter : ImageCounter.values()) {
+				counts.put(counter.name(), image.get(imageIndex(counter)));
+			}
+			for (Decision decision : Decision.values()) {
+				Map<String, Object> outcomes = new LinkedHashMap<String, Object>();
+				for (Outcome outcome : Outcome.values()) {
+					outcomes.put(outcome.name(),
+							image.get(outcomeIndex(decision, outcome)));
+				}
+				long correct = image.get(outcomeIndex(decision,
+						Outcome.CORRECT));
+				long decided = correct
+						+ image.get(outcomeIndex(decision, Outcome.WRONG));
+				outcomes.put("accuracy", (decided > 0) ? (double) correct
+						/ decided : null);
+				counts.put(decision.name(), outcomes);
+			}
+			images.put(entry.getKey(), counts);
+		}
+		snapshot.put("images", images);
+		return snapshot;
+	}
+
+	private void exportSnapshot() {
+		try {
+			Writer out = new FileWriter(snapshotFile, true);
+			try {
+				out.write(gson.toJson(snapshot()));
+				out.write('\n');
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			log.error("Error writing analytics snapshot to " + snapshotFile, e);
+		}
+	}
+}
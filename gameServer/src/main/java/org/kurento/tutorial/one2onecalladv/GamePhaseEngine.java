@@ -0,0 +1,282 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+//-----------------------------------------------------------------------------
+// Table-driven state machine for game progression. The transition table and
+// phase durations are loaded from game.properties (see that file for the
+// format), so game variants need no code changes. Both players of a match
+// always move together, except for personal triggers which move only the
+// sender until the peer catches up (the "peerReady" transition).
+//
+// What happens when a phase is entered (messages to the clients) is left to
+// the registered PhaseListeners.
+//-----------------------------------------------------------------------------
+public class GamePhaseEngine {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(GamePhaseEngine.class);
+
+	final static String DEFAULT_CONFIG = "/game.properties";
+
+	public enum Trigger {
+		CONFIRM_VIDEO(CallHandler.MSG_C2S.CONFIRM_VIDEO, false),
+		START_GAME(CallHandler.MSG_C2S.START_GAME, false),
+		FIRST_DECISION(CallHandler.MSG_C2S.FIRST_DECISION, true),
+		SECOND_DECISION(CallHandler.MSG_C2S.SECOND_DECISION, true),
+		PEER_READY("peerReady", true),
+		TIMEOUT("timeout", true);
+
+		final String key;
+		final boolean joint; // moves both players, not only the sender
+
+		Trigger(String key, boolean joint) {
+			this.key = key;
+			this.joint = joint;
+		}
+
+		static Trigger fromKey(String key) {
+			for (Trigger trigger : values()) {
+				if (trigger.key.equals(key)) {
+					return trigger;
+				}
+			}
+			return null;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Called with both players locked, after their gameState is updated.
+	//-------------------------------------------------------------------------
+	public interface PhaseListener {
+		void onEnter(GameState state, UserSession a, UserSession b)
+				throws IOException;
+	}
+
+	//-------------------------------------------------------------------------
+	// Data carried by a trigger (a decision), stored with both players
+	// locked only once the trigger is accepted, before they move and the
+	// listeners are called.
+	//-------------------------------------------------------------------------
+	public interface TransitionAction {
+		void apply(UserSession user, UserSession peer);
+	}
+
+	private final EnumMap<GameState, EnumMap<Trigger, GameState>> transitions = new EnumMap<GameState, EnumMap<Trigger, GameState>>(
+			GameState.class);
+	private final EnumMap<GameState, Long> durationsMs = new EnumMap<GameState, Long>(
+			GameState.class);
+
+	private final List<PhaseListener> listeners = new CopyOnWriteArrayList<PhaseListener>();
+	private final ScheduledExecutorService timer = Executors
+			.newScheduledThreadPool(Runtime.getRuntime().availableProcessors());
+
+	@Autowired
+	private UserRegistry registry;
+
+	public GamePhaseEngine() throws IOException {
+		for (GameState state : GameState.values()) {
+			transitions.put(state, new EnumMap<Trigger, GameState>(
+					Trigger.class));
+		}
+		load(openConfig());
+	}
+
+	private static InputStream openConfig() throws IOException {
+		String path = System.getProperty("game.config");
+		if (path != null) {
+			return new FileInputStream(path);
+		}
+		return GamePhaseEngine.class.getResourceAsStream(DEFAULT_CONFIG);
+	}
+
+	//-------------------------------------------------------------------------
+	// Fills the transition and duration tables. Unknown states or triggers
+	// fail startup rather than silently stalling games later.
+	//-------------------------------------------------------------------------
+	private void load(InputStream in) throws IOException {
+		Properties config = new Properties();
+		try {
+			config.load(in);
+		} finally {
+			in.close();
+		}
+
+		for (String key : config.stringPropertyNames()) {
+			String value = config.getProperty(key).trim();
+			String[] parts = key.split("\\.");
+			if (parts.length != 3) {
+				throw new IllegalArgumentException("Bad game config key: "
+						+ key);
+			}
+			GameState state = GameState.valueOf(parts[1]);
+
+			if ("transition".equals(parts[0])) {
+				Trigger trigger = Trigger.fromKey(parts[2]);
+				if (trigger == null) {
+					throw new IllegalArgumentException("Unknown trigger in "
+							+ key);
+				}
+				transitions.get(state).put(trigger, GameState.valueOf(value));
+			} else if ("phase".equals(parts[0]) && "seconds".equals(parts[2])) {
+				durationsMs.put(state, Long.parseLong(value) * 1000);
+			} else {
+				throw new IllegalArgumentException("Bad game config key: "
+						+ key);
+			}
+		}
+
+		for (GameState state : durationsMs.keySet()) {
+			if (!transitions.get(state).containsKey(Trigger.TIMEOUT)) {
+				log.warn("Phase {} has a duration but no timeout transition",
+						state);
+			}
+		}
+	}
+
+	public void addListener(PhaseListener listener) {
+		listeners.add(listener);
+	}
+
+	@PreDestroy
+	public void stop() {
+		timer.shutdownNow();
+	}
+
+	//-------------------------------------------------------------------------
+	// Applies a trigger on behalf of a user, running action (if not null)
+	// when it is accepted. Returns false (and changes nothing) if the table
+	// has no transition for the user's current state.
+	//-------------------------------------------------------------------------
+	public boolean fire(UserSession user, Trigger trigger) throws IOException {
+		return fire(user, trigger, null);
+	}
+
+	public boolean fire(UserSession user, Trigger trigger,
+			TransitionAction action) throws IOException {
+		UserSession peer = registry.getPeer(user);
+		if (peer == null) {
+			log.debug("ERROR: {} from user '{}' with no peer", trigger,
+					user.getName());
+			return false;
+		}
+		return fire(user, peer, trigger, action, null, 0);
+	}
+
+	//-------------------------------------------------------------------------
+	// Takes a user, and its peer if not null, out of their game (see
+	// UserSession.resetMatch) under the same locks as a transition.
+	//-------------------------------------------------------------------------
+	public void reset(UserSession user, UserSession peer) {
+		if (peer == null) {
+			synchronized (user) {
+				user.resetMatch();
+			}
+			return;
+		}
+		UserSession first = lockedFirst(user, peer);
+		synchronized (first) {
+			synchronized (first == user ? peer : user) {
+				user.resetMatch();
+				peer.resetMatch();
+			}
+		}
+	}
+
+	// Both players are always locked in the same order to avoid deadlocks.
+	private static UserSession lockedFirst(UserSession user, UserSession peer) {
+		return (user.getName().compareTo(peer.getName()) <= 0) ? peer : user;
+	}
+
+	//-------------------------------------------------------------------------
+	// When expected is not null the trigger only applies if the players are
+	// still in that phase instance (used by phase timers).
+	//-------------------------------------------------------------------------
+	private boolean fire(UserSession user, UserSession peer, Trigger trigger,
+			TransitionAction action, GameState expected, int expectedSeq)
+			throws IOException {
+		UserSession first = lockedFirst(user, peer);
+		UserSession second = (first == user) ? peer : user;
+
+		synchronized (first) {
+			synchronized (second) {
+				if (expected != null
+						&& (user.gameState != expected || user.phaseSeq != expectedSeq)) {
+					return false;
+				}
+				GameState next = transitions.get(user.gameState).get(trigger);
+				if (next == null) {
+					log.debug("ERROR: unexpected {} from user '{}' in {}",
+							trigger, user.getName(), user.gameState);
+					return false;
+				}
+
+				if (trigger.joint && peer.gameState != user.gameState) {
+					log.debug("ERROR: {} with players out of sync", trigger);
+					return false;
+				}
+				if (action != null) {
+					action.apply(user, peer);
+				}
+
+				if (trigger.joint) {
+					enter(user, peer, next);
+				} else {
+					user.gameState = next;
+					GameState joint = (peer.gameState == next) ? transitions
+							.get(next).get(Trigger.PEER_READY) : null;
+					if (joint != null) {
+						enter(user, peer, joint);
+					}
+				}
+				return true;
+			}
+		}
+	}
+
+	private void enter(final UserSession a, final UserSession b,
+			final GameState state) throws IOException {
+		a.gameState = b.gameState = state;
+		final int seq = Math.max(a.phaseSeq, b.phaseSeq) + 1;
+		a.phaseSeq = b.phaseSeq = seq;
+
+		for (PhaseListener listener : listeners) {
+			listener.onEnter(state, a, b);
+		}
+
+		Long duration = durationsMs.get(state);
+		if (duration != null) {
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						fire(a, b, Trigger.TIMEOUT, null, state, seq);
+					} catch (Exception e) {
+						log.error("Error ending phase " + state, e);
+					}
+				}
+			}, duration, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public long getDurationSeconds(GameState state) {
+		Long duration = durationsMs.get(state);
+		return (duration != null) ? duration / 1000 : 0;
+	}
+}
@@ -0,0 +1,267 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Detects half-open WebSocket connections (clients that vanished without a
+// close frame). Every open session is placed in one slot of a timer wheel.
+// A single thread advances the wheel one slot per tick, so each session is
+// visited once per heartbeat interval: live sessions are sent a ping, and
+// sessions that have shown no sign of life (text message or pong) within the
+// timeout are evicted through the registered listener.
+//
+// The sweeper thread itself never blocks on a socket or on KMS: pings are
+// sent from a small pool (at most one in flight per session, so a stuck
+// socket ties up one thread and is then evicted by timeout), and evictions
+// run on their own thread. A ping never waits for the socket: if another
+// frame is being written it is skipped (see SessionWriter), so writers
+// holding player locks are not queued behind heartbeats.
+//
+// Configured with the system properties heartbeat.interval.ms,
+// heartbeat.timeout.ms (at least the interval) and heartbeat.ping.threads.
+//-----------------------------------------------------------------------------
+public class HeartbeatMonitor {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(HeartbeatMonitor.class);
+
+	final static long DEFAULT_INTERVAL_MS = 10000;
+	final static long DEFAULT_TIMEOUT_MS = 30000;
+	final static int WHEEL_SLOTS = 20;
+
+	private static final ByteBuffer PING_PAYLOAD = ByteBuffer.allocate(0);
+
+	//-------------------------------------------------------------------------
+	// Notified (from the evictor thread) for each session found dead.
+	//-------------------------------------------------------------------------
+	public interface DeadSessionListener {
+		void onDeadSession(WebSocketSession session);
+	}
+
+	private static class Entry {
+		final WebSocketSession session;
+		final int slot;
+		volatile long lastSeen;
+		final AtomicBoolean pinging = new AtomicBoolean();
+
+		Entry(WebSocketSession session, int slot, long now) {
+			this.session = session;
+			this.slot = slot;
+			this.lastSeen = now;
+		}
+	}
+
+	private final long intervalMs;
+	private final long timeoutMs;
+	private final long tickMs;
+
+	private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+	private final List<Set<Entry>> wheel = new ArrayList<Set<Entry>>(WHEEL_SLOTS);
+	private final AtomicInteger nextSlot = new AtomicInteger();
+	private int cursor;
+
+	private final AtomicLong evictions = new AtomicLong();
+	private final AtomicLong skippedPings = new AtomicLong();
+	private final AtomicLong totalDetectionMs = new AtomicLong();
+	private final AtomicLong maxDetectionMs = new AtomicLong();
+
+	private ScheduledExecutorService sweeper;
+	private ExecutorService pinger;
+	private ExecutorService evictor;
+	private DeadSessionListener listener;
+
+	public HeartbeatMonitor() {
+		this(Long.getLong("heartbeat.interval.ms", DEFAULT_INTERVAL_MS),
+				Long.getLong("heartbeat.timeout.ms", DEFAULT_TIMEOUT_MS));
+	}
+
+	public HeartbeatMonitor(long intervalMs, long timeoutMs) {
+		if (intervalMs <= 0 || timeoutMs < intervalMs) {
+			throw new IllegalArgumentException("heartbeat.timeout.ms ("
+					+ timeoutMs + ") must be >= heartbeat.interval.ms ("
+					+ intervalMs + ") > 0");
+		}
+		this.intervalMs = intervalMs;
+		this.timeoutMs = timeoutMs;
+		this.tickMs = Math.max(1, intervalMs / WHEEL_SLOTS);
+		for (int i = 0; i < WHEEL_SLOTS; i++) {
+			wheel.add(Collections.newSetFromMap(
+					new ConcurrentHashMap<Entry, Boolean>()));
+		}
+	}
+
+	public void setListener(DeadSessionListener listener) {
+		this.listener = listener;
+	}
+
+	@PostConstruct
+	public void start() {
+		pinger = Executors.newFixedThreadPool(Integer.getInteger(
+				"heartbeat.ping.threads", 4));
+		evictor = Executors.newSingleThreadExecutor();
+		sweeper = Executors.newSingleThreadScheduledExecutor();
+		sweeper.scheduleAtFixedRate(new Runnable() {
+			@Override
+			public void run() {
+				tick();
+			}
+		}, tickMs, tickMs, TimeUnit.MILLISECONDS);
+		log.info("Heartbeat every {} ms, timeout {} ms", intervalMs, timeoutMs);
+	}
+
+	@PreDestroy
+	public void stop() {
+		if (sweeper != null) {
+			sweeper.shutdownNow();
+			pinger.shutdownNow();
+			evictor.shutdownNow();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Session lifecycle, called by the protocol handler.
+	//-------------------------------------------------------------------------
+	public void add(WebSocketSession session) {
+		int slot = (nextSlot.getAndIncrement() & Integer.MAX_VALUE)
+				% WHEEL_SLOTS;
+		Entry entry = new Entry(session, slot, System.currentTimeMillis());
+		entries.put(session.getId(), entry);
+		wheel.get(slot).add(entry);
+	}
+
+	public void remove(WebSocketSession session) {
+		Entry entry = entries.remove(session.getId());
+		if (entry != null) {
+			wheel.get(entry.slot).remove(entry);
+		}
+	}
+
+	// Any frame from the client (text or pong) proves the connection alive.
+	public void touch(WebSocketSession session) {
+		Entry entry = entries.get(session.getId());
+		if (entry != null) {
+			entry.lastSeen = System.currentTimeMillis();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Advances the wheel by one slot, pinging or evicting its sessions.
+	//-------------------------------------------------------------------------
+	private void tick() {
+		Set<Entry> slot = wheel.get(cursor);
+		cursor = (cursor + 1) % WHEEL_SLOTS;
+		long now = System.currentTimeMillis();
+
+		for (Entry entry : slot) {
+			long silence = now - entry.lastSeen;
+			if (silence > timeoutMs || !entry.session.isOpen()) {
+				evict(entry, silence);
+			} else if (entry.pinging.compareAndSet(false, true)) {
+				ping(entry);
+			}
+		}
+	}
+
+	private void ping(final Entry entry) {
+		pinger.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// A frame being written shows the socket in use; the
+					// ping is skipped rather than queued behind it
+					if (!SessionWriter.trySend(entry.session, new PingMessage(
+							PING_PAYLOAD.duplicate()))) {
+						skippedPings.incrementAndGet();
+					}
+				} catch (Exception e) {
+					log.debug("Ping to session '{}' failed: {}",
+							entry.session.getId(), e.getMessage());
+				} finally {
+					entry.pinging.set(false);
+				}
+			}
+		});
+	}
+
+	//-------------------------------------------------------------------------
+	// Removes the session at once (so the metrics reflect detection time)
+	// and hands the listener's cleanup to the evictor thread.
+	//-------------------------------------------------------------------------
+	private void evict(final Entry entry, long silence) {
+		remove(entry.session);
+		evictions.incrementAndGet();
+		totalDetectionMs.addAndGet(silence);
+		long max = maxDetectionMs.get();
+		while (silence > max && !maxDetectionMs.compareAndSet(max, silence)) {
+			max = maxDetectionMs.get();
+		}
+		log.info("Evicting dead session '{}' after {} ms of silence",
+				entry.session.getId(), silence);
+
+		if (listener != null) {
+			evictor.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						listener.onDeadSession(entry.session);
+					} catch (Exception e) {
+						log.error("Error evicting session "
+								+ entry.session.getId(), e);
+					}
+				}
+			});
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Metrics
+	//-------------------------------------------------------------------------
+	public int getSessionCount() {
+		return entries.size();
+	}
+
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	public long getSkippedPings() {
+		return skippedPings.get();
+	}
+
+	public long getAverageDetectionMs() {
+		long count = evictions.get();
+		return count == 0 ? 0 : totalDetectionMs.get() / count;
+	}
+
+	public long getMaxDetectionMs() {
+		return maxDetectionMs.get();
+	}
+
+	public long getIntervalMs() {
+		return intervalMs;
+	}
+
+	public long getTimeoutMs() {
+		return timeoutMs;
+	}
+}
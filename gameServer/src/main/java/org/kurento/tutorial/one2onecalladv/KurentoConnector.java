@@ -0,0 +1,193 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.client.KurentoConnectionListener;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//-----------------------------------------------------------------------------
+// Connection to the Kurento Media Server, established in the background so
+// that the application starts (and serves /call) without waiting for KMS.
+// Failed attempts and lost connections are retried with exponential backoff
+// between kms.reconnect.initial.ms and kms.reconnect.max.ms. Media requests
+// must check isReady() before using the client.
+//
+// Pipelines do not survive a lost connection, so the listener is told to
+// end the calls that used them, and the old client is destroyed once a new
+// one is connected. Each client reports to its own ClientListener, so that
+// the old client going down is not taken for a loss of the new one.
+//-----------------------------------------------------------------------------
+public class KurentoConnector {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(KurentoConnector.class);
+
+	private final String uri = System.getProperty("kms.ws.uri",
+			One2OneCallAdvApp.DEFAULT_KMS_WS_URI);
+	private final long initialBackoffMs = Long.getLong(
+			"kms.reconnect.initial.ms", 1000);
+	private final long maxBackoffMs = Long.getLong("kms.reconnect.max.ms",
+			30000);
+
+	//-------------------------------------------------------------------------
+	// Notified (from the connector thread) when the connection to KMS is
+	// lost, before reconnecting.
+	//-------------------------------------------------------------------------
+	public interface ConnectionLostListener {
+		void onConnectionLost();
+	}
+
+	private volatile ConnectionLostListener listener;
+	private volatile KurentoClient client;
+	private volatile ClientListener clientListener; // of client
+	private volatile boolean ready;
+	private long backoffMs = initialBackoffMs;
+
+	private final AtomicBoolean connecting = new AtomicBoolean();
+	private final ScheduledExecutorService connector = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final Runnable connectTask = new Runnable() {
+		@Override
+		public void run() {
+			connect();
+		}
+	};
+
+	public void setListener(ConnectionLostListener listener) {
+		this.listener = listener;
+	}
+
+	@PostConstruct
+	public void start() {
+		scheduleConnect(0);
+	}
+
+	@PreDestroy
+	public void stop() {
+		connector.shutdownNow();
+		ready = false; // destroying the client is not a loss
+		if (client != null) {
+			client.destroy();
+		}
+	}
+
+	public boolean isReady() {
+		return ready;
+	}
+
+	public KurentoClient getClient() {
+		return client;
+	}
+
+	public String getUri() {
+		return uri;
+	}
+
+	private void scheduleConnect(long delayMs) {
+		if (connecting.compareAndSet(false, true)) {
+			connector.schedule(connectTask, delayMs, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the connector thread. A throwaway pipeline forces the
+	// WebSocket to KMS open, so success means media requests will work.
+	//-------------------------------------------------------------------------
+	private void connect() {
+		ClientListener candidateListener = new ClientListener();
+		KurentoClient candidate = null;
+		try {
+			candidate = createClient(candidateListener);
+			candidate.createMediaPipeline().release();
+			KurentoClient old;
+			synchronized (this) {
+				old = client;
+				client = candidate;
+				clientListener = candidateListener;
+				ready = true;
+			}
+			if (old != null) {
+				old.destroy();
+			}
+			backoffMs = initialBackoffMs;
+			connecting.set(false);
+			log.info("Connected to KMS at {}", uri);
+		} catch (Exception e) {
+			if (candidate != null) {
+				candidate.destroy();
+			}
+			ready = false;
+			log.warn("KMS at {} unavailable ({}), retrying in {} ms", uri,
+					e.getMessage(), backoffMs);
+			connector.schedule(connectTask, backoffMs, TimeUnit.MILLISECONDS);
+			backoffMs = Math.min(backoffMs * 2, maxBackoffMs);
+		}
+	}
+
+	KurentoClient createClient(KurentoConnectionListener listener)
+			throws IOException {
+		return KurentoClient.create(uri, listener);
+	}
+
+	//-------------------------------------------------------------------------
+	// Events of one client. Only those of the current, connected client
+	// count as a loss: candidates that failed are handled in connect(), and
+	// replaced clients report their own destruction.
+	//-------------------------------------------------------------------------
+	private class ClientListener implements KurentoConnectionListener {
+
+		@Override
+		public void connected() {
+			log.debug("KMS connection open");
+		}
+
+		@Override
+		public void disconnected() {
+			lost(this, "Lost connection to KMS at {}");
+		}
+
+		@Override
+		public void connectionTimeout() {
+			lost(this, "Connection to KMS at {} timed out");
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the client's thread; the listener is called on the connector
+	// thread so it never blocks the client.
+	//-------------------------------------------------------------------------
+	private void lost(ClientListener source, String message) {
+		synchronized (this) {
+			if (source != clientListener || !ready) {
+				log.debug("Ignoring event of a replaced KMS client");
+				return;
+			}
+			ready = false;
+		}
+		log.warn(message, uri);
+		connector.execute(new Runnable() {
+			@Override
+			public void run() {
+				ConnectionLostListener current = listener;
+				if (current != null) {
+					try {
+						current.onConnectionLost();
+					} catch (Exception e) {
+						log.error("Error ending calls after KMS loss", e);
+					}
+				}
+			}
+		});
+		scheduleConnect(initialBackoffMs);
+	}
+}
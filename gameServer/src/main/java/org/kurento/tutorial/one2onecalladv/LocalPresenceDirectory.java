@@ -0,0 +1,42 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+//-----------------------------------------------------------------------------
+// PresenceDirectory kept in this JVM's memory. It is the default, and is
+// enough for a single node or for several nodes sharing one instance in a
+// test. Real multi-node deployments need a shared implementation.
+//-----------------------------------------------------------------------------
+public class LocalPresenceDirectory implements PresenceDirectory {
+
+	private ConcurrentHashMap<String, String> nodesByName = new ConcurrentHashMap<String, String>();
+	private Set<String> members = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+	public void join(String node) {
+		members.add(node);
+	}
+
+	public boolean isMember(String node) {
+		return node != null && members.contains(node);
+	}
+
+	public boolean claim(String name, String node) {
+		String owner = nodesByName.putIfAbsent(name, node);
+		return owner == null || owner.equals(node);
+	}
+
+	public void transfer(String name, String node) {
+		nodesByName.put(name, node);
+	}
+
+	public void release(String name, String node) {
+		nodesByName.remove(name, node);
+	}
+
+	public String lookup(String name) {
+		return nodesByName.get(name);
+	}
+}
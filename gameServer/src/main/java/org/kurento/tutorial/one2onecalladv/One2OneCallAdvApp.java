@@ -1,18 +1,37 @@
 package org.kurento.tutorial.one2onecalladv;
 
-import org.kurento.client.KurentoClient;
+import java.io.IOException;
+
 import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.PropertyPlaceholderAutoConfiguration;
+import org.springframework.boot.autoconfigure.jackson.JacksonAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.DispatcherServletAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.EmbeddedServletContainerAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.HttpMessageConvertersAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.ServerPropertiesAutoConfiguration;
+import org.springframework.boot.autoconfigure.web.WebMvcAutoConfiguration;
+import org.springframework.boot.autoconfigure.websocket.WebSocketAutoConfiguration;
+import org.springframework.boot.context.embedded.FilterRegistrationBean;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Import;
 import org.springframework.web.socket.config.annotation.EnableWebSocket;
 import org.springframework.web.socket.config.annotation.WebSocketConfigurer;
 import org.springframework.web.socket.config.annotation.WebSocketHandlerRegistry;
 
 // Video call 1 to 1 demo (main).
+// Only the auto-configuration this app uses (embedded Tomcat, Spring MVC for
+// static files and the admin endpoints, WebSocket) is imported, instead of
+// @EnableAutoConfiguration evaluating every configuration on the classpath.
 @Configuration
 @EnableWebSocket
-@EnableAutoConfiguration
+@Import({ PropertyPlaceholderAutoConfiguration.class,
+		EmbeddedServletContainerAutoConfiguration.class,
+		ServerPropertiesAutoConfiguration.class,
+		DispatcherServletAutoConfiguration.class,
+		JacksonAutoConfiguration.class,
+		HttpMessageConvertersAutoConfiguration.class,
+		WebMvcAutoConfiguration.class, WebSocketAutoConfiguration.class })
 public class One2OneCallAdvApp implements WebSocketConfigurer {
 
 	final static String DEFAULT_KMS_WS_URI = "ws://localhost:8888/kurento";
@@ -29,9 +48,109 @@ public class One2OneCallAdvApp implements WebSocketConfigurer {
 	}
 
 	@Bean
-	public KurentoClient kurentoClient() {
-		return KurentoClient.create(System.getProperty("kms.ws.uri",
-				DEFAULT_KMS_WS_URI));
+	public TournamentScheduler tournamentScheduler() {
+		return new TournamentScheduler();
+	}
+
+	@Bean
+	public RecordingCostMeter recordingCostMeter() {
+		return new RecordingCostMeter();
+	}
+
+	@Bean
+	public AssetManifest assetManifest() throws IOException {
+		return new AssetManifest();
+	}
+
+	@Bean
+	public StaticAssetConfig staticAssetConfig() {
+		return new StaticAssetConfig();
+	}
+
+	@Bean
+	public FilterRegistrationBean assetCacheFilter() {
+		FilterRegistrationBean registration = new FilterRegistrationBean(
+				staticAssetConfig().getCacheFilter());
+		registration.addUrlPatterns(StaticAssetConfig.PATH + "*");
+		return registration;
+	}
+
+	@Bean
+	public FilterRegistrationBean adminAuthFilter() {
+		FilterRegistrationBean registration = new FilterRegistrationBean(
+				new AdminAuthFilter());
+		registration.addUrlPatterns(AdminAuthFilter.PATH + "*");
+		return registration;
+	}
+
+	@Bean
+	public CallQualityMonitor callQualityMonitor() {
+		return new CallQualityMonitor();
+	}
+
+	@Bean
+	public CallSetupTracer callSetupTracer() {
+		return new CallSetupTracer();
+	}
+
+	@Bean
+	public ClusterNode clusterNode() throws ReflectiveOperationException {
+		return new ClusterNode();
+	}
+
+	@Bean
+	public ClusterController clusterController() {
+		return new ClusterController();
+	}
+
+	@Bean
+	public GamePhaseEngine gamePhaseEngine() throws IOException {
+		return new GamePhaseEngine();
+	}
+
+	@Bean
+	public ProtocolTrace protocolTrace() {
+		return new ProtocolTrace();
+	}
+
+	@Bean
+	public DrainManager drainManager() {
+		return new DrainManager();
+	}
+
+	@Bean
+	public RecordingIndex recordingIndex() {
+		return new RecordingIndex();
+	}
+
+	@Bean
+	public GameAnalytics gameAnalytics() {
+		return new GameAnalytics();
+	}
+
+	@Bean
+	public SpectatorManager spectatorManager() {
+		return new SpectatorManager();
+	}
+
+	@Bean
+	public HeartbeatMonitor heartbeatMonitor() {
+		return new HeartbeatMonitor();
+	}
+
+	@Bean
+	public RateLimiter rateLimiter() {
+		return new RateLimiter();
+	}
+
+	@Bean
+	public AdminController adminController() {
+		return new AdminController();
+	}
+
+	@Bean
+	public KurentoConnector kurentoConnector() {
+		return new KurentoConnector();
 	}
 
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
@@ -1,9 +1,6 @@
 
 package org.kurento.tutorial.one2onecalladv;
 
-import static org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RECORDING_EXT;
-import static org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RECORDING_PATH;
-
 import java.io.IOException;
 
 import org.kurento.client.EndOfStreamEvent;
@@ -33,15 +30,17 @@ public class PlayMediaPipeline {
 	private WebRtcEndpoint webRtc;
 	private PlayerEndpoint player;
 
-	public PlayMediaPipeline(KurentoClient kurento, String user,
+	//-------------------------------------------------------------------------
+	// Plays uri, a full-call recording or one of its phase segments.
+	//-------------------------------------------------------------------------
+	public PlayMediaPipeline(KurentoClient kurento, String uri,
 			final WebSocketSession session) {
 		// Media pipeline
 		pipeline = kurento.createMediaPipeline();
 
 		// Media Elements (WebRtcEndpoint, PlayerEndpoint)
 		webRtc = new WebRtcEndpoint.Builder(pipeline).build();
-		player = new PlayerEndpoint.Builder(pipeline, RECORDING_PATH + user
-				+ RECORDING_EXT).build();
+		player = new PlayerEndpoint.Builder(pipeline, uri).build();
 
 		// Connection
 		player.connect(webRtc);
@@ -66,7 +65,7 @@ public class PlayMediaPipeline {
 		try {
 			JsonObject response = new JsonObject();
 			response.addProperty("id", "playEnd");
-			session.sendMessage(new TextMessage(response.toString()));
+			SessionWriter.send(session, new TextMessage(response.toString()));
 		} catch (IOException e) {
 			log.error("Error sending playEndOfStream message", e);
 		}
@@ -0,0 +1,29 @@
+package org.kurento.tutorial.one2onecalladv;
+
+//-----------------------------------------------------------------------------
+// Cluster-wide map from registered user names to the node hosting their
+// signaling, identified by the node's base URL (cluster.node.url), and the
+// set of nodes that have joined the cluster.
+// Implementations shared between nodes must make claim() atomic across the
+// cluster. Select one with -Dcluster.directory.class=<class name>.
+//-----------------------------------------------------------------------------
+public interface PresenceDirectory {
+
+	// Adds node to the cluster members.
+	void join(String node);
+
+	// Whether node has joined the cluster.
+	boolean isMember(String node);
+
+	// Records name as hosted by node, unless another node already has it.
+	boolean claim(String name, String node);
+
+	// Moves an existing name to node (its match is now hosted there).
+	void transfer(String name, String node);
+
+	// Removes name if it is still hosted by node.
+	void release(String name, String node);
+
+	// The node hosting name, or null if it is not registered anywhere.
+	String lookup(String name);
+}
@@ -0,0 +1,130 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+//-----------------------------------------------------------------------------
+// Always-on flight recorder of signaling traffic. Every message in or out is
+// stored as a compact immutable record (time, direction, session, message
+// id, size in UTF-8 bytes) in a fixed-size ring buffer, overwriting the
+// oldest. Writers never lock: each claims a sequence number from a counter
+// and publishes its record into the slot with a single volatile write, so
+// readers always see whole records and skip those already overwritten.
+//
+// One in trace.sample.every messages also keeps its full payload
+// (0 = never). Buffer size is trace.buffer.size, rounded up to a power of 2.
+//-----------------------------------------------------------------------------
+public class ProtocolTrace {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ProtocolTrace.class);
+
+	public enum Direction {
+		IN, OUT
+	}
+
+	private static class Entry {
+		final long seq;
+		final long time;
+		final Direction direction;
+		final String sessionId;
+		final String messageId;
+		final int size;
+		final String payload;
+
+		Entry(long seq, Direction direction, String sessionId,
+				String messageId, int size, String payload) {
+			this.seq = seq;
+			this.time = System.currentTimeMillis();
+			this.direction = direction;
+			this.sessionId = sessionId;
+			this.messageId = messageId;
+			this.size = size;
+			this.payload = payload;
+		}
+	}
+
+	private final int mask;
+	private final int sampleEvery;
+	private final AtomicLong next = new AtomicLong();
+	private final AtomicReferenceArray<Entry> entries;
+
+	public ProtocolTrace() {
+		this(Integer.getInteger("trace.buffer.size", 8192), Integer
+				.getInteger("trace.sample.every", 0));
+	}
+
+	public ProtocolTrace(int size, int sampleEvery) {
+		int capacity = Integer.highestOneBit(Math.max(2, size - 1)) << 1;
+		this.mask = capacity - 1;
+		this.sampleEvery = sampleEvery;
+		entries = new AtomicReferenceArray<Entry>(capacity);
+	}
+
+	public void record(Direction direction, String sessionId,
+			String messageId, String payload) {
+		long seq = next.getAndIncrement();
+		int size = RateLimiter.utf8Length(payload, Integer.MAX_VALUE);
+		entries.set((int) (seq & mask), new Entry(seq, direction, sessionId,
+				messageId, size, (sampleEvery > 0 && seq % sampleEvery == 0)
+						? payload : null));
+	}
+
+	//-------------------------------------------------------------------------
+	// Records currently in the buffer, oldest first. If filter is not null
+	// only records of the session ids it contains are returned.
+	//-------------------------------------------------------------------------
+	public List<Map<String, Object>> dump(Set<String> filter) {
+		List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
+		long end = next.get();
+		long start = Math.max(0, end - mask - 1);
+
+		for (long seq = start; seq < end; seq++) {
+			Entry entry = entries.get((int) (seq & mask));
+			// Not written yet, or already overwritten by a newer record
+			if (entry == null || entry.seq != seq) {
+				continue;
+			}
+			if (filter != null && !filter.contains(entry.sessionId)) {
+				continue;
+			}
+			Map<String, Object> record = new LinkedHashMap<String, Object>();
+			record.put("time", entry.time);
+			record.put("dir", entry.direction.name());
+			record.put("session", entry.sessionId);
+			record.put("id", entry.messageId);
+			record.put("size", entry.size);
+			if (entry.payload != null) {
+				record.put("payload", entry.payload);
+			}
+			records.add(record);
+		}
+		return records;
+	}
+
+	//-------------------------------------------------------------------------
+	// Writes the recent traffic of the given sessions to the log, typically
+	// right after an error in one of them.
+	//-------------------------------------------------------------------------
+	public void dumpToLog(Set<String> sessionIds) {
+		for (Map<String, Object> record : dump(sessionIds)) {
+			log.warn("trace {}", record);
+		}
+	}
+
+	public long getRecorded() {
+		return next.get();
+	}
+
+	public int getCapacity() {
+		return mask + 1;
+	}
+}
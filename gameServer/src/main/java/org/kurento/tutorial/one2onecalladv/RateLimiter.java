@@ -0,0 +1,230 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Flood protection for the signaling socket. Each session has a token bucket
+// for all messages plus one bucket per expensive message type (those that
+// make the server create KMS pipelines). The frame size and the per-session
+// bucket are checked on the raw payload, so that a flooding client is
+// rejected before any JSON parsing is done; the per-type buckets are applied
+// after parsing, to the id that is actually dispatched.
+//
+// Configured with system properties:
+//   signaling.max.frame.bytes, signaling.max.sdp.bytes,
+//   ratelimit.messages.per.sec, ratelimit.messages.burst,
+//   ratelimit.media.per.sec, ratelimit.media.burst
+//-----------------------------------------------------------------------------
+public class RateLimiter {
+
+	public enum Verdict {
+		ACCEPT,     // process the message
+		DROP,       // ignore the message
+		CLOSE       // ignore the message and close the session
+	}
+
+	// Message ids that allocate media server resources, each limited by its
+	// own bucket per session.
+	final static String[] MEDIA_MESSAGES = { CallHandler.MSG_C2S.CALL,
+			CallHandler.MSG_C2S.INCOMING_CALL_RSP, CallHandler.MSG_C2S.PLAY,
+			CallHandler.MSG_C2S.SPECTATE };
+
+	// Consecutive dropped messages after which the session is closed.
+	final static int MAX_STRIKES = 50;
+
+	private static final Map<String, Integer> mediaIndex = new HashMap<String, Integer>();
+	static {
+		for (int i = 0; i < MEDIA_MESSAGES.length; i++) {
+			mediaIndex.put(MEDIA_MESSAGES[i], i);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Classic token bucket refilled lazily on each acquire.
+	//-------------------------------------------------------------------------
+	static class TokenBucket {
+		private final double perNano;
+		private final double capacity;
+		private double tokens;
+		private long last;
+
+		TokenBucket(double perSecond, double capacity) {
+			this.perNano = perSecond / 1e9;
+			this.capacity = capacity;
+			this.tokens = capacity;
+			this.last = System.nanoTime();
+		}
+
+		synchronized boolean tryAcquire() {
+			long now = System.nanoTime();
+			tokens = Math.min(capacity, tokens + (now - last) * perNano);
+			last = now;
+			if (tokens >= 1) {
+				tokens -= 1;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	private static class SessionLimits {
+		final TokenBucket all;
+		final TokenBucket[] media;
+		int strikes;
+
+		SessionLimits(RateLimiter limiter) {
+			all = new TokenBucket(limiter.messagesPerSec,
+					limiter.messagesBurst);
+			media = new TokenBucket[MEDIA_MESSAGES.length];
+			for (int i = 0; i < media.length; i++) {
+				media[i] = new TokenBucket(limiter.mediaPerSec,
+						limiter.mediaBurst);
+			}
+		}
+	}
+
+	private final int maxFrameBytes = Integer.getInteger(
+			"signaling.max.frame.bytes", 64 * 1024);
+	private final int maxSdpBytes = Integer.getInteger(
+			"signaling.max.sdp.bytes", 32 * 1024);
+	private final double messagesPerSec = doubleProperty(
+			"ratelimit.messages.per.sec", 20);
+	private final double messagesBurst = doubleProperty(
+			"ratelimit.messages.burst", 40);
+	private final double mediaPerSec = doubleProperty(
+			"ratelimit.media.per.sec", 0.5);
+	private final double mediaBurst = doubleProperty("ratelimit.media.burst",
+			3);
+
+	private final ConcurrentHashMap<String, SessionLimits> limits = new ConcurrentHashMap<String, SessionLimits>();
+
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong closed = new AtomicLong();
+
+	public void add(WebSocketSession session) {
+		limits.put(session.getId(), new SessionLimits(this));
+	}
+
+	public void remove(WebSocketSession session) {
+		limits.remove(session.getId());
+	}
+
+	//-------------------------------------------------------------------------
+	// Decides what to do with a raw frame before it is parsed: frames larger
+	// than the limit (in UTF-8 bytes) close the session, and every frame
+	// takes a token from the per-session bucket.
+	//-------------------------------------------------------------------------
+	public Verdict check(WebSocketSession session, String payload) {
+		SessionLimits sessionLimits = limits.get(session.getId());
+		if (sessionLimits == null) {
+			return Verdict.ACCEPT;
+		}
+		if (utf8Length(payload, maxFrameBytes) > maxFrameBytes) {
+			closed.incrementAndGet();
+			return Verdict.CLOSE;
+		}
+		return verdict(sessionLimits, sessionLimits.all.tryAcquire());
+	}
+
+	//-------------------------------------------------------------------------
+	// Applies the bucket of an expensive message type once the message has
+	// been parsed, with the id it will be dispatched under.
+	//-------------------------------------------------------------------------
+	public Verdict checkMessage(WebSocketSession session, String id) {
+		SessionLimits sessionLimits = limits.get(session.getId());
+		Integer index = (id != null) ? mediaIndex.get(id) : null;
+		if (sessionLimits == null || index == null) {
+			return Verdict.ACCEPT;
+		}
+		return verdict(sessionLimits, sessionLimits.media[index].tryAcquire());
+	}
+
+	private Verdict verdict(SessionLimits sessionLimits, boolean accepted) {
+		synchronized (sessionLimits) {
+			if (accepted) {
+				sessionLimits.strikes = 0;
+				return Verdict.ACCEPT;
+			}
+			dropped.incrementAndGet();
+			if (++sessionLimits.strikes >= MAX_STRIKES) {
+				closed.incrementAndGet();
+				return Verdict.CLOSE;
+			}
+			return Verdict.DROP;
+		}
+	}
+
+	public boolean isSdpAllowed(String sdp) {
+		return sdp == null || utf8Length(sdp, maxSdpBytes) <= maxSdpBytes;
+	}
+
+	//-------------------------------------------------------------------------
+	// Size of the string encoded as UTF-8, without encoding it. Counting
+	// stops as soon as the limit is exceeded.
+	//-------------------------------------------------------------------------
+	static int utf8Length(String s, int limit) {
+		int bytes = 0;
+		for (int i = 0, n = s.length(); i < n && bytes <= limit; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				bytes += 1;
+			} else if (c < 0x800) {
+				bytes += 2;
+			} else if (Character.isHighSurrogate(c) && i + 1 < n
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				bytes += 4;
+				i++;
+			} else {
+				bytes += 3;
+			}
+		}
+		return bytes;
+	}
+
+	//-------------------------------------------------------------------------
+	// Extracts the value of the first "id" field without a JSON parser. Only
+	// used to label trace entries; it can be fooled by a decoy string, so it
+	// must not drive any limit.
+	//-------------------------------------------------------------------------
+	static String sniffId(String payload) {
+		int key = payload.indexOf("\"id\"");
+		if (key < 0) {
+			return null;
+		}
+		int colon = payload.indexOf(':', key);
+		int start = (colon < 0) ? -1 : payload.indexOf('"', colon + 1);
+		if (start < 0) {
+			return null;
+		}
+		int end = payload.indexOf('"', start + 1);
+		if (end < 0) {
+			return null;
+		}
+		return payload.substring(start + 1, end);
+	}
+
+	private static double doubleProperty(String key, double defaultValue) {
+		String value = System.getProperty(key);
+		return (value != null) ? Double.parseDouble(value) : defaultValue;
+	}
+
+	//-------------------------------------------------------------------------
+	// Configuration and metrics
+	//-------------------------------------------------------------------------
+	public int getMaxFrameBytes() {
+		return maxFrameBytes;
+	}
+
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	public long getClosed() {
+		return closed.get();
+	}
+}
@@ -0,0 +1,102 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.File;
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PreDestroy;
+
+//-----------------------------------------------------------------------------
+// What recording costs in the configured mode (recording.mode), to compare
+// DUAL and COMPOSITE deployments on the same workload:
+//   - recorders (file handles / write streams) and recorder-seconds
+//   - bytes written, read from the files when recordings are on a local
+//     file:// path (KMS on this host). KMS finishes writing a file after
+//     its pipeline is released, so sizes are read recording.size.delay.ms
+//     (default 5000) later; files still being flushed then are undercounted
+//   - time spent in KMS calls creating and starting recorders
+//   - system load average, as a proxy for KMS CPU when it shares the host
+//     (Kurento 5 does not report its own CPU use); COMPOSITE mixing and
+//     re-encoding shows up here
+// Matches are counted when their pipeline is released.
+//-----------------------------------------------------------------------------
+public class RecordingCostMeter {
+
+	// Read on creation, so a bad -Drecording.mode fails startup
+	private final CallMediaPipeline.RecordingMode mode = CallMediaPipeline.RecordingMode
+			.fromProperty();
+	private final long sizeDelayMs = Long.getLong("recording.size.delay.ms",
+			5000);
+	private final ScheduledExecutorService sizer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private final AtomicLong matches = new AtomicLong();
+	private final AtomicLong recorders = new AtomicLong();
+	private final AtomicLong recorderMs = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong pendingSizes = new AtomicLong();
+	private final AtomicLong setupMs = new AtomicLong();
+	private final OperatingSystemMXBean os = ManagementFactory
+			.getOperatingSystemMXBean();
+
+	@PreDestroy
+	public void stop() {
+		sizer.shutdownNow();
+	}
+
+	//-------------------------------------------------------------------------
+	// Called once the match's pipeline has been released. File sizes are
+	// read later, once KMS has had time to close the recordings.
+	//-------------------------------------------------------------------------
+	public void matchEnded(CallMediaPipeline call) {
+		matches.incrementAndGet();
+		recorders.addAndGet(call.getRecorderCount());
+		recorderMs.addAndGet(call.getRecorderMs());
+		setupMs.addAndGet(call.getRecordingSetupMs());
+
+		final List<String> uris = call.getRecordingUris();
+		pendingSizes.incrementAndGet();
+		sizer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				for (String uri : uris) {
+					if (uri.startsWith("file://")) {
+						bytes.addAndGet(new File(uri.substring("file://"
+								.length())).length());
+					}
+				}
+				pendingSizes.decrementAndGet();
+			}
+		}, sizeDelayMs, TimeUnit.MILLISECONDS);
+	}
+
+	public Map<String, Object> snapshot() {
+		long count = matches.get();
+		Map<String, Object> stats = new LinkedHashMap<String, Object>();
+		stats.put("mode", mode.name());
+		stats.put("matches", count);
+		stats.put("recorders", recorders.get());
+		stats.put("recorderSeconds", recorderMs.get() / 1000);
+		stats.put("bytesWritten", bytes.get());
+		stats.put("matchesPendingSize", pendingSizes.get());
+		stats.put("recordingSetupMs", setupMs.get());
+		if (count > 0) {
+			stats.put("recordersPerMatch", (double) recorders.get() / count);
+			long sized = count - pendingSizes.get();
+			if (sized > 0) {
+				stats.put("bytesPerMatch", bytes.get() / sized);
+			}
+			stats.put("setupMsPerMatch", (double) setupMs.get() / count);
+		}
+		stats.put("systemLoadAverage", os.getSystemLoadAverage());
+		stats.put("processors", os.getAvailableProcessors());
+		return stats;
+	}
+}
@@ -0,0 +1,217 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.Gson;
+
+//-----------------------------------------------------------------------------
+// Timestamp index of game phases within each user's call recording, used to
+// start playback at a phase instead of the beginning of the call.
+//
+// The Kurento 5 PlayerEndpoint cannot seek, so phases listed in the system
+// property recording.segment.phases (default FIRST_INTERROGATION and
+// SECOND_INTERROGATION) also start a new segment file per participant. A
+// play request for a phase or offset plays the segment that covers it.
+// The full-call recording is kept as before. Each index is also written
+// next to the user's recording as <recording>.index.json. In COMPOSITE
+// recording mode both players' entries point into the shared match file,
+// and their indexes are written as <recording>-<user>.index.json.
+//
+// Phase marks arrive with both players locked by GamePhaseEngine, so only
+// the offset is taken there; starting segment recorders and writing the
+// index file run on a single writer thread, in phase order. Indexes of the
+// last recording.index.max.users users are kept in memory.
+//-----------------------------------------------------------------------------
+public class RecordingIndex {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RecordingIndex.class);
+	private static final Gson gson = new Gson();
+
+	final static String DEFAULT_SEGMENT_PHASES = "FIRST_INTERROGATION,SECOND_INTERROGATION";
+
+	public static class Entry {
+		final String phase;
+		final long offsetMs; // from the start of the full recording
+		final String uri;    // segment starting here, or null
+
+		Entry(String phase, long offsetMs, String uri) {
+			this.phase = phase;
+			this.offsetMs = offsetMs;
+			this.uri = uri;
+		}
+
+		public long getOffsetMs() {
+			return offsetMs;
+		}
+
+		public String getUri() {
+			return uri;
+		}
+	}
+
+	private static class Index {
+		final String path; // of the index file
+		final List<Entry> entries = new ArrayList<Entry>();
+
+		Index(String path) {
+			this.path = path;
+		}
+	}
+
+	private final EnumSet<GameState> segmentPhases = EnumSet
+			.noneOf(GameState.class);
+	private final int maxUsers = Integer.getInteger(
+			"recording.index.max.users", 1000);
+	private final Map<String, Index> indexes = Collections
+			.synchronizedMap(new LinkedHashMap<String, Index>(16, 0.75f, true) {
+				private static final long serialVersionUID = 1L;
+
+				@Override
+				protected boolean removeEldestEntry(
+						Map.Entry<String, Index> eldest) {
+					return size() > maxUsers;
+				}
+			});
+	private final ExecutorService writer = Executors
+			.newSingleThreadExecutor();
+
+	public RecordingIndex() {
+		String phases = System.getProperty("recording.segment.phases",
+				DEFAULT_SEGMENT_PHASES);
+		for (String phase : phases.split(",")) {
+			if (!phase.trim().isEmpty()) {
+				segmentPhases.add(GameState.valueOf(phase.trim()));
+			}
+		}
+	}
+
+	@PreDestroy
+	public void stop() {
+		writer.shutdown();
+	}
+
+	//-------------------------------------------------------------------------
+	// Starts a fresh index for both participants of a call that has just
+	// begun recording. The full recording is the entry at offset 0.
+	//-------------------------------------------------------------------------
+	public void start(CallMediaPipeline call) {
+		String from = call.getFrom();
+		String to = call.getTo();
+		boolean shared = call.getRecordingUri(from, null).equals(
+				call.getRecordingUri(to, null));
+		for (String user : new String[] { from, to }) {
+			String recording = call.getRecordingUri(user, null);
+			Index index = new Index(recording.replaceFirst("^file://", "")
+					+ (shared ? "-" + user : "") + ".index.json");
+			index.entries.add(new Entry("CALL", 0, recording));
+			indexes.put(user, index);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Records that the match in call entered a phase, starting a new segment
+	// if the phase is configured for it. Returns at once; the offset and the
+	// players' indexes are those current at the time of this call.
+	//-------------------------------------------------------------------------
+	public void markPhase(final CallMediaPipeline call, final GameState state) {
+		final long offset = call.getRecordingOffsetMs();
+		final String[] users = { call.getFrom(), call.getTo() };
+		final Index[] targets = { indexes.get(users[0]), indexes.get(users[1]) };
+		writer.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					addPhase(call, state, offset, users, targets);
+				} catch (Exception e) {
+					log.error("Error indexing phase " + state + " of "
+							+ users[0] + " - " + users[1], e);
+				}
+			}
+		});
+	}
+
+	private void addPhase(CallMediaPipeline call, GameState state,
+			long offset, String[] users, Index[] targets) {
+		boolean segment = segmentPhases.contains(state);
+		if (segment) {
+			call.startSegment(state.name());
+		}
+		for (int i = 0; i < users.length; i++) {
+			Index index = targets[i];
+			if (index == null) {
+				continue;
+			}
+			synchronized (index) {
+				index.entries.add(new Entry(state.name(), offset,
+						segment ? call.getRecordingUri(users[i], state.name())
+								: null));
+				save(index);
+			}
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// The playable entry covering a phase (by name) or, if phase is null, an
+	// offset into the recording: the last segment starting at or before it.
+	// Returns null if the user has no index or the phase was never reached.
+	//-------------------------------------------------------------------------
+	public Entry find(String user, String phase, long offsetMs) {
+		Index index = indexes.get(user);
+		if (index == null) {
+			return null;
+		}
+		List<Entry> entries = index.entries;
+		synchronized (index) {
+			if (phase != null) {
+				offsetMs = -1;
+				for (Entry entry : entries) {
+					if (entry.phase.equals(phase)) {
+						offsetMs = entry.offsetMs;
+						break;
+					}
+				}
+				if (offsetMs < 0) {
+					return null;
+				}
+			}
+			Entry best = null;
+			for (Entry entry : entries) {
+				if (entry.uri != null && entry.offsetMs <= offsetMs) {
+					best = entry;
+				}
+			}
+			return best;
+		}
+	}
+
+	private void save(Index index) {
+		String path = index.path;
+		try {
+			Writer out = new FileWriter(path);
+			try {
+				gson.toJson(index.entries, out);
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) {
+			log.error("Error writing recording index " + path, e);
+		}
+	}
+}
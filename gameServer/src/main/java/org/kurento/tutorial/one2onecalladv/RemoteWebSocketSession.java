@@ -0,0 +1,129 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.Principal;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Stand-in for the WebSocket of a user connected to another cluster node.
+// Lets CallHandler treat remote users like local ones: text messages sent
+// to it are queued for the user's node (see ClusterNode.deliverRemote),
+// which writes them to the real socket. Other frame types are dropped;
+// the owning node pings its own sessions.
+//-----------------------------------------------------------------------------
+public class RemoteWebSocketSession implements WebSocketSession {
+
+	private final ClusterNode cluster;
+	private final String node;
+	private final String name;
+	private final Map<String, Object> attributes = new ConcurrentHashMap<String, Object>();
+	private volatile boolean open = true;
+
+	public RemoteWebSocketSession(ClusterNode cluster, String node, String name) {
+		this.cluster = cluster;
+		this.node = node;
+		this.name = name;
+	}
+
+	public String getNode() {
+		return node;
+	}
+
+	@Override
+	public String getId() {
+		return "remote-" + name;
+	}
+
+	@Override
+	public void sendMessage(WebSocketMessage<?> message) throws IOException {
+		if (open && message instanceof TextMessage) {
+			cluster.deliverRemote(node, name,
+					((TextMessage) message).getPayload());
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public void close() throws IOException {
+		open = false;
+	}
+
+	@Override
+	public void close(CloseStatus status) throws IOException {
+		open = false;
+	}
+
+	@Override
+	public URI getUri() {
+		return URI.create(node);
+	}
+
+	@Override
+	public HttpHeaders getHandshakeHeaders() {
+		return new HttpHeaders();
+	}
+
+	@Override
+	public Map<String, Object> getAttributes() {
+		return attributes;
+	}
+
+	@Override
+	public Principal getPrincipal() {
+		return null;
+	}
+
+	@Override
+	public InetSocketAddress getLocalAddress() {
+		return null;
+	}
+
+	@Override
+	public InetSocketAddress getRemoteAddress() {
+		return null;
+	}
+
+	@Override
+	public String getAcceptedProtocol() {
+		return null;
+	}
+
+	@Override
+	public void setTextMessageSizeLimit(int messageSizeLimit) {
+	}
+
+	@Override
+	public int getTextMessageSizeLimit() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public void setBinaryMessageSizeLimit(int messageSizeLimit) {
+	}
+
+	@Override
+	public int getBinaryMessageSizeLimit() {
+		return Integer.MAX_VALUE;
+	}
+
+	@Override
+	public List<WebSocketExtension> getExtensions() {
+		return Collections.emptyList();
+	}
+}
@@ -0,0 +1,65 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Serializes the frames written to a WebSocket, which must not be sent to
+// concurrently. Every writer holds the session's lock, kept in its
+// attributes, while sending. Writers that can do without a frame when the
+// socket is busy, like heartbeat pings, use trySend() and never wait.
+//-----------------------------------------------------------------------------
+final class SessionWriter {
+
+	private static final String LOCK_ATTRIBUTE = SessionWriter.class
+			.getName() + ".lock";
+
+	private SessionWriter() {
+	}
+
+	static void send(WebSocketSession session, WebSocketMessage<?> message)
+			throws IOException {
+		Lock lock = lock(session);
+		lock.lock();
+		try {
+			session.sendMessage(message);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	// False, without sending, if another frame is being written.
+	static boolean trySend(WebSocketSession session,
+			WebSocketMessage<?> message) throws IOException {
+		Lock lock = lock(session);
+		if (!lock.tryLock()) {
+			return false;
+		}
+		try {
+			session.sendMessage(message);
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private static Lock lock(WebSocketSession session) {
+		Map<String, Object> attributes = session.getAttributes();
+		Lock lock = (Lock) attributes.get(LOCK_ATTRIBUTE);
+		if (lock == null) {
+			synchronized (session) {
+				lock = (Lock) attributes.get(LOCK_ATTRIBUTE);
+				if (lock == null) {
+					lock = new ReentrantLock();
+					attributes.put(LOCK_ATTRIBUTE, lock);
+				}
+			}
+		}
+		return lock;
+	}
+}
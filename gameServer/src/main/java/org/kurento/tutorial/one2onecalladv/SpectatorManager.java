@@ -0,0 +1,154 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// Live observers of running matches. Each spectator session owns two
+// receive-only WebRtcEndpoints inside the match's CallMediaPipeline, one per
+// player, limited to spectators.max.per.match (system property) viewers per
+// match.
+//
+// Only registered sessions presenting the observer token set with
+// -Dspectators.token may watch; without it spectating is disabled.
+//-----------------------------------------------------------------------------
+public class SpectatorManager {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SpectatorManager.class);
+
+	private static class Spectator {
+		final WebSocketSession session;
+		final CallMediaPipeline call;
+		final WebRtcEndpoint[] views;
+
+		Spectator(WebSocketSession session, CallMediaPipeline call,
+				WebRtcEndpoint[] views) {
+			this.session = session;
+			this.call = call;
+			this.views = views;
+		}
+	}
+
+	private final int maxPerMatch = Integer.getInteger(
+			"spectators.max.per.match", 4);
+	private final String token = System.getProperty("spectators.token");
+
+	private final ConcurrentHashMap<String, Spectator> spectators = new ConcurrentHashMap<String, Spectator>();
+	private final AtomicLong total = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong unauthorized = new AtomicLong();
+
+	//-------------------------------------------------------------------------
+	// True if the given token is the configured observer token. Compared in
+	// constant time so the token cannot be guessed from response timings.
+	//-------------------------------------------------------------------------
+	public boolean isAuthorized(String presented) {
+		boolean authorized = token != null && !token.isEmpty()
+				&& presented != null
+				&& MessageDigest.isEqual(
+						token.getBytes(StandardCharsets.UTF_8),
+						presented.getBytes(StandardCharsets.UTF_8));
+		if (!authorized) {
+			unauthorized.incrementAndGet();
+		}
+		return authorized;
+	}
+
+	//-------------------------------------------------------------------------
+	// Attaches the session to both players of a match and returns the SDP
+	// answers to its offers for the caller's and the callee's stream, or
+	// null if the match is already at its viewer cap. A session watches one
+	// match at a time. If an offer is refused the endpoints are released
+	// and the viewer slot freed before the error is rethrown.
+	//-------------------------------------------------------------------------
+	public String[] spectate(WebSocketSession session, CallMediaPipeline call,
+			String sdpOfferCaller, String sdpOfferCallee) {
+		stop(session);
+
+		WebRtcEndpoint[] views = call.addSpectator(maxPerMatch);
+		if (views == null) {
+			rejected.incrementAndGet();
+			return null;
+		}
+		String[] sdpAnswers;
+		try {
+			sdpAnswers = new String[] { views[0].processOffer(sdpOfferCaller),
+					views[1].processOffer(sdpOfferCallee) };
+		} catch (RuntimeException e) {
+			call.removeSpectator(views);
+			throw e;
+		}
+		spectators.put(session.getId(), new Spectator(session, call, views));
+		total.incrementAndGet();
+		log.debug("Session '{}' spectating match {} - {}", session.getId(),
+				call.getFrom(), call.getTo());
+		return sdpAnswers;
+	}
+
+	public void stop(WebSocketSession session) {
+		Spectator spectator = spectators.remove(session.getId());
+		if (spectator != null) {
+			spectator.call.removeSpectator(spectator.views);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Detaches every spectator of a match whose pipeline is being released
+	// and tells them the match is over.
+	//-------------------------------------------------------------------------
+	public void endMatch(CallMediaPipeline call) {
+		Iterator<Spectator> it = spectators.values().iterator();
+		while (it.hasNext()) {
+			Spectator spectator = it.next();
+			if (spectator.call != call) {
+				continue;
+			}
+			it.remove();
+			JsonObject message = new JsonObject();
+			message.addProperty("id", CallHandler.MSG_S2C.SPECTATE_END);
+			try {
+				SessionWriter.send(spectator.session, new TextMessage(message
+						.toString()));
+			} catch (IOException e) {
+				log.debug("Could not notify spectator '{}' of match end",
+						spectator.session.getId());
+			}
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Metrics
+	//-------------------------------------------------------------------------
+	public int getMaxPerMatch() {
+		return maxPerMatch;
+	}
+
+	public int getActive() {
+		return spectators.size();
+	}
+
+	public long getTotal() {
+		return total.get();
+	}
+
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	public long getUnauthorized() {
+		return unauthorized.get();
+	}
+}
@@ -0,0 +1,231 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+import org.springframework.web.servlet.config.annotation.ResourceHandlerRegistry;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurerAdapter;
+import org.springframework.web.servlet.resource.EncodedResource;
+import org.springframework.web.servlet.resource.PathResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolver;
+import org.springframework.web.servlet.resource.ResourceResolverChain;
+
+//-----------------------------------------------------------------------------
+// Serves the fingerprinted files written by AssetPipeline under /assets/.
+// Their names change whenever their content does, so they are cached for a
+// year as immutable, with the content hash as ETag. A .br or .gz variant is
+// sent instead of the file when the client accepts that encoding. Other
+// static files (index.html, bower_components) keep Spring Boot's default
+// handling.
+//-----------------------------------------------------------------------------
+public class StaticAssetConfig extends WebMvcConfigurerAdapter {
+
+	final static String PATH = "/" + AssetPipeline.ASSETS_DIR + "/";
+	final static String CACHE_CONTROL = "public, max-age=31536000, immutable";
+
+	// Precompressed variants, most preferred first
+	final static String[] ENCODINGS = { "br", "gzip" };
+	final static String[] SUFFIXES = { ".br", ".gz" };
+
+	@Override
+	public void addResourceHandlers(ResourceHandlerRegistry registry) {
+		// No resolver cache: in this Spring version it is keyed by path only
+		// and would hand gzip to clients that asked for identity.
+		registry.addResourceHandler(PATH + "**")
+				.addResourceLocations("classpath:/static" + PATH)
+				.resourceChain(false)
+				.addResolver(new PrecompressedResourceResolver())
+				.addResolver(new PathResourceResolver());
+	}
+
+	public Filter getCacheFilter() {
+		return new ImmutableCacheFilter();
+	}
+
+	//-------------------------------------------------------------------------
+	// Picks the best precompressed variant the client accepts.
+	//-------------------------------------------------------------------------
+	static class PrecompressedResourceResolver implements ResourceResolver {
+
+		@Override
+		public Resource resolveResource(HttpServletRequest request,
+				String requestPath, List<? extends Resource> locations,
+				ResourceResolverChain chain) {
+			Resource resource = chain.resolveResource(request, requestPath,
+					locations);
+			if (resource == null || request == null) {
+				return resource;
+			}
+			String accepted = request.getHeader("Accept-Encoding");
+			if (accepted == null) {
+				return resource;
+			}
+			for (int i = 0; i < ENCODINGS.length; i++) {
+				if (!accepts(accepted, ENCODINGS[i])) {
+					continue;
+				}
+				try {
+					Resource encoded = resource.createRelative(resource
+							.getFilename() + SUFFIXES[i]);
+					if (encoded.exists()) {
+						return new PrecompressedResource(resource, encoded,
+								ENCODINGS[i]);
+					}
+				} catch (IOException e) {
+					// no variant for this encoding
+				}
+			}
+			return resource;
+		}
+
+		@Override
+		public String resolveUrlPath(String resourcePath,
+				List<? extends Resource> locations, ResourceResolverChain chain) {
+			return chain.resolveUrlPath(resourcePath, locations);
+		}
+
+		// True if the Accept-Encoding header lists encoding without q=0.
+		static boolean accepts(String header, String encoding) {
+			for (String token : header.split(",")) {
+				String[] parts = token.trim().split(";");
+				if (parts[0].trim().equalsIgnoreCase(encoding)) {
+					return !(parts.length > 1 && parts[1].trim().matches(
+							"q=0(\\.0*)?"));
+				}
+			}
+			return false;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// The compressed file's content under the original file's name, so the
+	// media type is that of the original.
+	//-------------------------------------------------------------------------
+	static class PrecompressedResource extends AbstractResource implements
+			EncodedResource {
+
+		private final Resource original;
+		private final Resource encoded;
+		private final String encoding;
+
+		PrecompressedResource(Resource original, Resource encoded,
+				String encoding) {
+			this.original = original;
+			this.encoded = encoded;
+			this.encoding = encoding;
+		}
+
+		@Override
+		public String getContentEncoding() {
+			return encoding;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return encoded.getInputStream();
+		}
+
+		@Override
+		public boolean exists() {
+			return encoded.exists();
+		}
+
+		@Override
+		public URL getURL() throws IOException {
+			return encoded.getURL();
+		}
+
+		@Override
+		public URI getURI() throws IOException {
+			return encoded.getURI();
+		}
+
+		@Override
+		public File getFile() throws IOException {
+			return encoded.getFile();
+		}
+
+		@Override
+		public long contentLength() throws IOException {
+			return encoded.contentLength();
+		}
+
+		@Override
+		public long lastModified() throws IOException {
+			return encoded.lastModified();
+		}
+
+		@Override
+		public Resource createRelative(String relativePath) throws IOException {
+			return original.createRelative(relativePath);
+		}
+
+		@Override
+		public String getFilename() {
+			return original.getFilename();
+		}
+
+		@Override
+		public String getDescription() {
+			return encoded.getDescription();
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Cache headers for /assets/*. The hash in the file name is the ETag
+	// (weak, since the bytes differ per encoding), so revalidations are
+	// answered with 304 without touching the file.
+	//-------------------------------------------------------------------------
+	static class ImmutableCacheFilter implements Filter {
+
+		private static final Pattern HASHED_NAME = Pattern
+				.compile("\\.([0-9a-f]{" + AssetPipeline.HASH_CHARS
+						+ "})(\\.[^./]*)?$");
+
+		@Override
+		public void init(FilterConfig config) {
+		}
+
+		@Override
+		public void doFilter(ServletRequest req, ServletResponse res,
+				FilterChain chain) throws IOException, ServletException {
+			HttpServletRequest request = (HttpServletRequest) req;
+			HttpServletResponse response = (HttpServletResponse) res;
+
+			Matcher hashed = HASHED_NAME.matcher(request.getRequestURI());
+			if (hashed.find()) {
+				String etag = "W/\"" + hashed.group(1) + "\"";
+				response.setHeader("ETag", etag);
+				response.setHeader("Cache-Control", CACHE_CONTROL);
+				response.setHeader("Vary", "Accept-Encoding");
+				String match = request.getHeader("If-None-Match");
+				if (match != null && match.contains(hashed.group(1))) {
+					response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+					return;
+				}
+			}
+			chain.doFilter(req, res);
+		}
+
+		@Override
+		public void destroy() {
+		}
+	}
+}
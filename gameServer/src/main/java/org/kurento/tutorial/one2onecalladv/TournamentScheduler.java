@@ -0,0 +1,576 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// Runs a session of several rounds for a roster of registered players,
+// started from the admin endpoint. Pairings are either ROUND_ROBIN (every
+// pair meets once) or ROTATING (the second half of the roster rotates past
+// the first). All matches of a round start together, but are launched
+// tournament.stagger.ms apart, and each launch builds the match's media
+// pipeline on the scheduler's thread (CallHandler.prepareCall), so KMS
+// gets one pipeline creation at a time rather than a burst. Players are
+// then moved to their next match over their WebSocket with a "nextMatch"
+// message: the caller's client sends "call" and the callee's client
+// accepts it without asking, if it arrives within tournament.accept.sec.
+//
+// A round ends when every match reaches POST_SURVEY, after
+// tournament.round.timeout.sec, or when the tournament is stopped; its
+// players then get "roundEnd". The next one starts tournament.break.sec
+// later, unless the server is draining. Players with a bye, or missing or
+// busy when their match is launched, sit that round out; those available
+// are told with a "roundEnd" marked as a bye.
+//
+// The monitor only guards the schedule: media release and messages to
+// players happen outside it, since GamePhaseEngine calls onEnter() with
+// the players locked.
+//-----------------------------------------------------------------------------
+public class TournamentScheduler implements GamePhaseEngine.PhaseListener {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(TournamentScheduler.class);
+
+	public enum Pairing {
+		ROUND_ROBIN, ROTATING
+	}
+
+	enum Result {
+		PENDING, PLAYING, FINISHED, SKIPPED, TIMED_OUT, STOPPED
+	}
+
+	static class Match {
+		final String caller;
+		final String callee;
+		Result result = Result.PENDING;
+		long startedAt;
+		long finishedAt;
+
+		Match(String caller, String callee) {
+			this.caller = caller;
+			this.callee = callee;
+		}
+
+		boolean hasPlayers(String a, String b) {
+			return (caller.equals(a) && callee.equals(b))
+					|| (caller.equals(b) && callee.equals(a));
+		}
+	}
+
+	static class Round {
+		final int number;
+		final List<Match> matches;
+		long startedAt;
+		long finishedAt;
+
+		Round(int number, List<Match> matches) {
+			this.number = number;
+			this.matches = matches;
+		}
+	}
+
+	private final long staggerMs = Long.getLong("tournament.stagger.ms", 250);
+	private final long breakSec = Long.getLong("tournament.break.sec", 30);
+	private final long roundTimeoutSec = Long.getLong(
+			"tournament.round.timeout.sec", 900);
+	private final long acceptSec = Long.getLong("tournament.accept.sec", 60);
+
+	private final ScheduledExecutorService timer = Executors
+			.newSingleThreadScheduledExecutor();
+
+	// Guarded by this
+	private List<String> roster;
+	private List<List<Match>> schedule;
+	private Pairing pairing;
+	private int next;
+	private Round current;
+	private final List<Round> done = new ArrayList<Round>();
+	private ScheduledFuture<?> timeout;
+
+	@Autowired
+	private CallHandler callHandler;
+
+	@Autowired
+	private UserRegistry registry;
+
+	@Autowired
+	private GamePhaseEngine phases;
+
+	@Autowired
+	private KurentoConnector kms;
+
+	@Autowired
+	private DrainManager drain;
+
+	@PostConstruct
+	public void init() {
+		phases.addListener(this);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		timer.shutdownNow();
+	}
+
+	//-------------------------------------------------------------------------
+	// Starts a session. rounds <= 0 plays the full pairing schedule. Names
+	// are trimmed and repeated names ignored; a blank name is an
+	// IllegalArgumentException. Returns false if a session is already
+	// running or the roster has fewer than 2 players.
+	//-------------------------------------------------------------------------
+	public synchronized boolean start(List<String> names, Pairing pairing,
+			int rounds) {
+		List<String> roster = roster(names);
+		if (schedule != null || roster.size() < 2) {
+			return false;
+		}
+		List<List<Match>> all = (pairing == Pairing.ROUND_ROBIN) ? roundRobin(roster)
+				: rotating(roster);
+		this.schedule = (rounds > 0 && rounds < all.size()) ? all.subList(0,
+				rounds) : all;
+		this.roster = roster;
+		this.pairing = pairing;
+		this.next = 0;
+		this.current = null;
+		done.clear();
+		log.info("Tournament of {} players, {} rounds ({})", roster.size(),
+				schedule.size(), pairing);
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				startRound();
+			}
+		}, 0);
+		return true;
+	}
+
+	//-------------------------------------------------------------------------
+	// Stops the tournament. A round in progress ends now: its matches still
+	// pending or playing are marked STOPPED, and its players get
+	// "roundEnd". Games already started are left to finish.
+	//-------------------------------------------------------------------------
+	public synchronized void stop() {
+		if (schedule == null) {
+			return;
+		}
+		schedule = null;
+		if (current != null && current.finishedAt == 0) {
+			log.info("Tournament stopped in round {}", current.number);
+			endRound(current, Result.STOPPED);
+		} else {
+			log.info("Tournament stopped before round {}", next + 1);
+		}
+	}
+
+	static List<String> roster(List<String> names) {
+		LinkedHashSet<String> roster = new LinkedHashSet<String>();
+		for (String name : names) {
+			if (name == null || name.trim().isEmpty()) {
+				throw new IllegalArgumentException("blank player name");
+			}
+			roster.add(name.trim());
+		}
+		return new ArrayList<String>(roster);
+	}
+
+	//-------------------------------------------------------------------------
+	// Circle method: player 0 stays, the rest rotate; an odd roster gets a
+	// bye. Sides alternate between rounds.
+	//-------------------------------------------------------------------------
+	static List<List<Match>> roundRobin(List<String> roster) {
+		List<String> circle = new ArrayList<String>(roster);
+		if (circle.size() % 2 != 0) {
+			circle.add(null);
+		}
+		int n = circle.size();
+		List<List<Match>> rounds = new ArrayList<List<Match>>();
+		for (int r = 0; r < n - 1; r++) {
+			List<Match> matches = new ArrayList<Match>();
+			for (int i = 0; i < n / 2; i++) {
+				String a = circle.get(i);
+				String b = circle.get(n - 1 - i);
+				if (a != null && b != null) {
+					matches.add(r % 2 == 0 ? new Match(a, b) : new Match(b, a));
+				}
+			}
+			rounds.add(matches);
+			circle.add(1, circle.remove(n - 1));
+		}
+		return rounds;
+	}
+
+	//-------------------------------------------------------------------------
+	// First half of the roster calls; in round r, caller i plays callee
+	// (i + r) of the second half. An odd roster gets a bye.
+	//-------------------------------------------------------------------------
+	static List<List<Match>> rotating(List<String> roster) {
+		List<String> players = new ArrayList<String>(roster);
+		if (players.size() % 2 != 0) {
+			players.add(null);
+		}
+		int half = players.size() / 2;
+		List<List<Match>> rounds = new ArrayList<List<Match>>();
+		for (int r = 0; r < half; r++) {
+			List<Match> matches = new ArrayList<Match>();
+			for (int i = 0; i < half; i++) {
+				String a = players.get(i);
+				String b = players.get(half + (i + r) % half);
+				if (a != null && b != null) {
+					matches.add(new Match(a, b));
+				}
+			}
+			rounds.add(matches);
+		}
+		return rounds;
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the timer thread. Ends the previous round's calls, outside the
+	// monitor, and launches this round's matches, staggered.
+	//-------------------------------------------------------------------------
+	private void startRound() {
+		List<UserSession> previous = previousPlayers();
+		if (previous == null) {
+			return;
+		}
+		for (UserSession user : previous) {
+			callHandler.endCall(user);
+		}
+		beginRound();
+	}
+
+	//-------------------------------------------------------------------------
+	// The registered players of the previous round, or null if the round
+	// is not to start now.
+	//-------------------------------------------------------------------------
+	private synchronized List<UserSession> previousPlayers() {
+		if (schedule == null) {
+			return null;
+		}
+		if (drain.isDraining()) {
+			log.info("Tournament stopped before round {}: server draining",
+					next + 1);
+			schedule = null;
+			return null;
+		}
+		if (!kms.isReady()) {
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					startRound();
+				}
+			}, 1000);
+			return null;
+		}
+
+		List<UserSession> players = new ArrayList<UserSession>();
+		if (current != null) {
+			for (Match match : current.matches) {
+				for (String name : Arrays.asList(match.caller, match.callee)) {
+					UserSession user = registry.getByName(name);
+					if (user != null) {
+						players.add(user);
+					}
+				}
+			}
+		}
+		return players;
+	}
+
+	private synchronized void beginRound() {
+		if (schedule == null) {
+			return;
+		}
+		final Round round = new Round(next + 1, schedule.get(next));
+		round.startedAt = System.currentTimeMillis();
+		current = round;
+		log.info("Round {} starting with {} matches", round.number,
+				round.matches.size());
+
+		final List<String> byes = new ArrayList<String>(roster);
+		for (Match match : round.matches) {
+			byes.remove(match.caller);
+			byes.remove(match.callee);
+		}
+		if (!byes.isEmpty()) {
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					sitOut(round, byes);
+				}
+			}, 0);
+		}
+
+		for (int i = 0; i < round.matches.size(); i++) {
+			final Match match = round.matches.get(i);
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					launch(round, match);
+				}
+			}, (i + 1) * staggerMs);
+		}
+		timeout = timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				endRound(round, Result.TIMED_OUT);
+			}
+		}, roundTimeoutSec, TimeUnit.SECONDS);
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the timer thread: builds the match's pipeline and moves both
+	// players to it, or skips it if one of them is unavailable.
+	//-------------------------------------------------------------------------
+	private void launch(Round round, Match match) {
+		UserSession caller = registry.getByName(match.caller);
+		UserSession callee = registry.getByName(match.callee);
+		if (!play(round, match, caller, callee)) {
+			return;
+		}
+		try {
+			callHandler.prepareCall(match.caller, match.callee);
+		} catch (RuntimeException e) {
+			log.warn("Round {}: {} vs {} skipped, no pipeline: {}",
+					round.number, match.caller, match.callee, e.getMessage());
+			skip(round, match);
+			return;
+		}
+		try {
+			// Callee first, so it expects the call before it arrives
+			callee.sendMessage(nextMatch(round, match.caller, false));
+			caller.sendMessage(nextMatch(round, match.callee, true));
+		} catch (IOException e) {
+			log.info("Round {}: {} vs {} skipped: {}", round.number,
+					match.caller, match.callee, e.getMessage());
+			skip(round, match);
+		}
+	}
+
+	private synchronized boolean play(final Round round, final Match match,
+			UserSession caller, UserSession callee) {
+		if (round != current || match.result != Result.PENDING) {
+			return false;
+		}
+		if (caller == null || callee == null || callHandler.isInCall(caller)
+				|| callHandler.isInCall(callee)) {
+			log.info("Round {}: {} vs {} skipped, player unavailable",
+					round.number, match.caller, match.callee);
+			match.result = Result.SKIPPED;
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					sitOut(round, Arrays.asList(match.caller, match.callee));
+				}
+			}, 0);
+			checkRound(round);
+			return false;
+		}
+		match.startedAt = System.currentTimeMillis();
+		match.result = Result.PLAYING;
+		return true;
+	}
+
+	private synchronized void skip(Round round, Match match) {
+		if (match.result == Result.PLAYING) {
+			match.result = Result.SKIPPED;
+			checkRound(round);
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the timer thread: tells the given players they have no match
+	// this round. Their client drops the call the previous round left, which
+	// startRound() already released. Players in a call of their own are
+	// left alone.
+	//-------------------------------------------------------------------------
+	private void sitOut(Round round, List<String> names) {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", CallHandler.MSG_S2C.ROUND_END);
+		message.addProperty("round", round.number);
+		message.addProperty("bye", true);
+		for (String name : names) {
+			UserSession user = registry.getByName(name);
+			if (user == null || callHandler.isInCall(user)) {
+				continue;
+			}
+			try {
+				user.sendMessage(message);
+			} catch (IOException e) {
+				log.debug("Could not tell '{}' to sit out round {}", name,
+						round.number);
+			}
+		}
+	}
+
+	private JsonObject nextMatch(Round round, String peer, boolean caller) {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", CallHandler.MSG_S2C.NEXT_MATCH);
+		message.addProperty("round", round.number);
+		message.addProperty("peer", peer);
+		message.addProperty("caller", caller);
+		message.addProperty("acceptSec", acceptSec);
+		return message;
+	}
+
+	//-------------------------------------------------------------------------
+	// PhaseListener: a match of the current round finished its game.
+	//-------------------------------------------------------------------------
+	public synchronized void onEnter(GameState state, UserSession a,
+			UserSession b) {
+		if (state != GameState.POST_SURVEY || current == null) {
+			return;
+		}
+		for (Match match : current.matches) {
+			if (match.result == Result.PLAYING
+					&& match.hasPlayers(a.getName(), b.getName())) {
+				match.result = Result.FINISHED;
+				match.finishedAt = System.currentTimeMillis();
+				checkRound(current);
+				return;
+			}
+		}
+	}
+
+	private void checkRound(Round round) {
+		for (Match match : round.matches) {
+			if (match.result == Result.PENDING
+					|| match.result == Result.PLAYING) {
+				return;
+			}
+		}
+		endRound(round, Result.TIMED_OUT);
+	}
+
+	//-------------------------------------------------------------------------
+	// Records the round as done, marking its unfinished matches with the
+	// given result, and starts the break before the next one, if any.
+	//-------------------------------------------------------------------------
+	private synchronized void endRound(final Round round, Result unfinished) {
+		if (round != current || round.finishedAt != 0) {
+			return;
+		}
+		timeout.cancel(false);
+		round.finishedAt = System.currentTimeMillis();
+		for (Match match : round.matches) {
+			if (match.result == Result.PENDING
+					|| match.result == Result.PLAYING) {
+				match.result = unfinished;
+			}
+		}
+		done.add(round);
+		log.info("Round {} completed in {} ms", round.number,
+				round.finishedAt - round.startedAt);
+		schedule(new Runnable() {
+			@Override
+			public void run() {
+				notifyRoundEnd(round);
+			}
+		}, 0);
+
+		if (schedule == null) {
+			return;
+		}
+		next++;
+		if (next < schedule.size()) {
+			schedule(new Runnable() {
+				@Override
+				public void run() {
+					startRound();
+				}
+			}, breakSec * 1000);
+		} else {
+			log.info("Tournament finished after {} rounds", done.size());
+			schedule = null;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Runs on the timer thread: tells the round's players it is over, so
+	// clients stop waiting for a scheduled call, and releases the pipelines
+	// of matches whose call never came.
+	//-------------------------------------------------------------------------
+	private void notifyRoundEnd(Round round) {
+		JsonObject message = new JsonObject();
+		message.addProperty("id", CallHandler.MSG_S2C.ROUND_END);
+		message.addProperty("round", round.number);
+		for (Match match : round.matches) {
+			callHandler.discardPreparedCall(match.caller);
+			for (String name : Arrays.asList(match.caller, match.callee)) {
+				UserSession user = registry.getByName(name);
+				if (user == null) {
+					continue;
+				}
+				try {
+					user.sendMessage(message);
+				} catch (IOException e) {
+					log.debug("Could not tell '{}' round {} ended", name,
+							round.number);
+				}
+			}
+		}
+	}
+
+	private void schedule(Runnable task, long delayMs) {
+		timer.schedule(task, delayMs, TimeUnit.MILLISECONDS);
+	}
+
+	//-------------------------------------------------------------------------
+	// Metrics: progress and the completion time of every round played.
+	//-------------------------------------------------------------------------
+	public synchronized Map<String, Object> status() {
+		Map<String, Object> status = new LinkedHashMap<String, Object>();
+		status.put("running", schedule != null);
+		status.put("pairing", pairing);
+		status.put("rounds", (schedule != null) ? schedule.size() : done.size());
+
+		List<Map<String, Object>> rounds = new ArrayList<Map<String, Object>>();
+		List<Round> all = new ArrayList<Round>(done);
+		if (current != null && current.finishedAt == 0) {
+			all.add(current);
+		}
+		for (Round round : all) {
+			Map<String, Object> summary = new LinkedHashMap<String, Object>();
+			summary.put("round", round.number);
+			summary.put("startedAt", round.startedAt);
+			if (round.finishedAt != 0) {
+				summary.put("durationMs", round.finishedAt - round.startedAt);
+			}
+			Map<String, Integer> results = new LinkedHashMap<String, Integer>();
+			long slowestMs = 0;
+			for (Match match : round.matches) {
+				String key = match.result.name();
+				results.put(key, results.containsKey(key) ? results.get(key) + 1
+						: 1);
+				if (match.result == Result.FINISHED) {
+					slowestMs = Math.max(slowestMs, match.finishedAt
+							- match.startedAt);
+				}
+			}
+			summary.put("matches", results);
+			summary.put("slowestMatchMs", slowestMs);
+			rounds.add(summary);
+		}
+		status.put("played", rounds);
+		return status;
+	}
+}
@@ -1,5 +1,7 @@
 package org.kurento.tutorial.one2onecalladv;
 
+import java.util.HashSet;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import org.springframework.web.socket.WebSocketSession;
 
@@ -26,6 +28,28 @@ public class UserRegistry {
 		return usersBySessionId.get(session.getId());
 	}
 
+	public UserSession getBySessionId(String sessionId) {
+		return usersBySessionId.get(sessionId);
+	}
+
+	// The other party of the user's current (or last) call, if still online.
+	public UserSession getPeer(UserSession user) {
+		String peerName = (user.getCallingFrom() != null) ? user
+				.getCallingFrom() : user.getCallingTo();
+		return (peerName != null) ? usersByName.get(peerName) : null;
+	}
+
+	// Session ids of the user and, if online, its peer.
+	public Set<String> getMatchSessionIds(UserSession user) {
+		Set<String> ids = new HashSet<String>();
+		ids.add(user.getSessionId());
+		UserSession peer = getPeer(user);
+		if (peer != null) {
+			ids.add(peer.getSessionId());
+		}
+		return ids;
+	}
+
 	public boolean exists(String name) {
 		return usersByName.keySet().contains(name);
 	}
@@ -2,8 +2,6 @@ package org.kurento.tutorial.one2onecalladv;
 
 import java.io.IOException;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
@@ -15,16 +13,15 @@ import com.google.gson.JsonObject;
 //---------------------------------------------------------------------
 public class UserSession {
 
-	private static final Logger log = LoggerFactory
-			.getLogger(UserSession.class);
-
 	private String name; // name that the user entered in html name box
 	private WebSocketSession session;
+	private ProtocolTrace trace;
 
 	private String sdpOffer;
 	private String callingTo;    // Only callingTo or callingFrom will be 
 	private String callingFrom;  // set during a call. The other will be null
 	public String imageName;
+	public String truth; // "truth" or "bluff": what the describer was asked to do
 	public String firstDecision;
 	public String hint;
 	public String secondDecision;
@@ -44,6 +41,8 @@ public class UserSession {
 		POST_SURVEY
 	}
 	public GameState gameState;
+	public int phaseSeq; // bumped on every phase entered; guards phase timers
+	public CallSetupTrace setupTrace; // shared with the peer until the game starts
 
 	public enum Role {
 		NONE,
@@ -52,9 +51,11 @@ public class UserSession {
 	}
 	public Role role;
 	
-	public UserSession(WebSocketSession session, String name) {
+	public UserSession(WebSocketSession session, String name,
+			ProtocolTrace trace) {
 		this.session = session;
 		this.name = name;
+		this.trace = trace;
 		this.gameState = GameState.NOT_CONNECTED;
 	}
 
@@ -90,9 +91,23 @@ public class UserSession {
 		this.callingFrom = callingFrom;
 	}
 
+	//---------------------------------------------------------------------
+	// Forgets the last call and game, so the user can start another match
+	// on the same session. Bumping phaseSeq cancels pending phase timers.
+	//---------------------------------------------------------------------
+	public void resetMatch() {
+		callingTo = callingFrom = null;
+		imageName = truth = firstDecision = hint = secondDecision = null;
+		role = null;
+		gameState = GameState.NOT_CONNECTED;
+		phaseSeq++;
+	}
+
 	public void sendMessage(JsonObject message) throws IOException {
-		log.debug("Sending message from user '{}': {}", name, message);
-		session.sendMessage(new TextMessage(message.toString()));
+		String payload = message.toString();
+		trace.record(ProtocolTrace.Direction.OUT, session.getId(), message
+				.get("id").getAsString(), payload);
+		SessionWriter.send(session, new TextMessage(payload));
 	}
 
 	public String getSessionId() {
@@ -0,0 +1,109 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Map;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.google.gson.Gson;
+
+//-----------------------------------------------------------------------------
+// Hashed names, reference rewriting, manifest and clean reruns of
+// AssetPipeline on a small static directory.
+//-----------------------------------------------------------------------------
+public class AssetPipelineTest {
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	private File staticDir;
+
+	@Before
+	public void setUp() throws IOException {
+		staticDir = folder.getRoot();
+		write("img/Hat.png", "not really a png");
+		write("css/game.css", "body { background: url(../img/Hat.png); }");
+		write("js/index.js", "var hat = './img/Hat.png';\n"
+				+ repeat("// padding to make gzip worthwhile\n", 20));
+		write("index.html", "<link rel=\"stylesheet\" href=\"css/game.css\">"
+				+ "<script src=\"js/index.js\"></script>");
+	}
+
+	@Test
+	public void referencesPointAtHashedNames() throws Exception {
+		new AssetPipeline(staticDir).run();
+		Map<String, String> manifest = manifest();
+		String hat = manifest.get("img/Hat.png");
+		String css = manifest.get("css/game.css");
+		String js = manifest.get("js/index.js");
+		assertTrue(hat, hat.matches("img/Hat\\.[0-9a-f]{10}\\.png"));
+
+		assertEquals("body { background: url(../" + hat + "); }",
+				read("assets/" + css));
+		assertTrue(read("assets/" + js).startsWith("var hat = './assets/"
+				+ hat + "';"));
+		assertEquals("<link rel=\"stylesheet\" href=\"assets/" + css + "\">"
+				+ "<script src=\"assets/" + js + "\"></script>",
+				read("index.html"));
+	}
+
+	@Test
+	public void onlyTextIsPrecompressed() throws Exception {
+		new AssetPipeline(staticDir).run();
+		Map<String, String> manifest = manifest();
+		assertTrue(new File(staticDir, "assets/" + manifest.get("js/index.js")
+				+ ".gz").isFile());
+		assertFalse(new File(staticDir, "assets/"
+				+ manifest.get("img/Hat.png") + ".gz").exists());
+	}
+
+	@Test
+	public void rerunLeavesNoStaleAssets() throws Exception {
+		new AssetPipeline(staticDir).run();
+		String oldHat = manifest().get("img/Hat.png");
+
+		write("img/Hat.png", "a different hat");
+		new AssetPipeline(staticDir).run();
+		String newHat = manifest().get("img/Hat.png");
+
+		assertFalse(oldHat.equals(newHat));
+		assertFalse(new File(staticDir, "assets/" + oldHat).exists());
+		assertTrue(new File(staticDir, "assets/" + newHat).isFile());
+	}
+
+	private Map<String, String> manifest() throws IOException {
+		@SuppressWarnings("unchecked")
+		Map<String, String> manifest = new Gson().fromJson(read("assets/"
+				+ AssetPipeline.MANIFEST), Map.class);
+		return manifest;
+	}
+
+	private void write(String path, String content) throws IOException {
+		File file = new File(staticDir, path);
+		file.getParentFile().mkdirs();
+		Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private String read(String path) throws IOException {
+		return new String(Files.readAllBytes(new File(staticDir, path)
+				.toPath()), StandardCharsets.UTF_8);
+	}
+
+	private static String repeat(String text, int times) {
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < times; i++) {
+			out.append(text);
+		}
+		return out.toString();
+	}
+}
@@ -0,0 +1,81 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Test;
+import org.kurento.tutorial.one2onecalladv.CallMediaPipeline.RecordingMode;
+
+//-----------------------------------------------------------------------------
+// Recording modes of CallMediaPipeline: parsing of -Drecording.mode and the
+// recorders each mode creates.
+//-----------------------------------------------------------------------------
+public class CallMediaPipelineTest {
+
+	@After
+	public void tearDown() {
+		System.clearProperty("recording.mode");
+	}
+
+	@Test
+	public void modeDefaultsToDual() {
+		assertEquals(RecordingMode.DUAL, RecordingMode.fromProperty());
+	}
+
+	@Test
+	public void modeIsTrimmedAndCaseInsensitive() {
+		System.setProperty("recording.mode", " composite ");
+		assertEquals(RecordingMode.COMPOSITE, RecordingMode.fromProperty());
+	}
+
+	@Test
+	public void unknownModeFailsStartup() {
+		System.setProperty("recording.mode", "MIXED");
+		try {
+			new CallHandler();
+			fail("Accepted recording.mode=MIXED");
+		} catch (IllegalArgumentException expected) {
+			assertTrue(expected.getMessage(), expected.getMessage().contains(
+					"'MIXED'"));
+		}
+	}
+
+	@Test
+	public void dualRecordsEachPlayer() {
+		CallMediaPipeline call = call(RecordingMode.DUAL);
+		assertEquals(Arrays.asList(CallMediaPipeline.recordingUri("alice",
+				null), CallMediaPipeline.recordingUri("bob", null)),
+				call.getRecordingUris());
+		assertEquals(CallMediaPipeline.recordingUri("bob", null),
+				call.getRecordingUri("bob", null));
+
+		call.startSegment("FIRST_INTERROGATION");
+		assertEquals(4, call.getRecorderCount());
+	}
+
+	@Test
+	public void compositeRecordsOneFilePerMatch() {
+		CallMediaPipeline call = call(RecordingMode.COMPOSITE);
+		String match = CallMediaPipeline.recordingUri(
+				CallMediaPipeline.matchName("alice", "bob"), null);
+		assertEquals(Arrays.asList(match), call.getRecordingUris());
+		assertEquals(match, call.getRecordingUri("alice", null));
+		assertEquals(match, call.getRecordingUri("bob", null));
+
+		call.startSegment("FIRST_INTERROGATION");
+		assertEquals(2, call.getRecorderCount());
+		assertEquals(CallMediaPipeline.recordingUri(
+				CallMediaPipeline.matchName("alice", "bob"),
+				"FIRST_INTERROGATION"), call.getRecordingUri("bob",
+				"FIRST_INTERROGATION"));
+	}
+
+	private static CallMediaPipeline call(RecordingMode mode) {
+		return new CallMediaPipeline(new FakeKms().client(), "alice", "bob",
+				mode, new CallSetupTrace("alice", "bob"));
+	}
+}
@@ -0,0 +1,123 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// Window validation, averaging, loss from counter deltas and degraded
+// alerts of CallQualityMonitor.
+//-----------------------------------------------------------------------------
+public class CallQualityMonitorTest {
+
+	private CallMediaPipeline call;
+
+	@Before
+	public void setUp() {
+		call = new CallMediaPipeline(new FakeKms().client(), "alice", "bob",
+				CallMediaPipeline.RecordingMode.DUAL, new CallSetupTrace(
+						"alice", "bob"));
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty("stats.window.samples");
+	}
+
+	@Test
+	public void windowBelowOneSampleIsRejected() {
+		for (String samples : new String[] { "0", "-1" }) {
+			System.setProperty("stats.window.samples", samples);
+			try {
+				new CallQualityMonitor();
+				fail("Accepted stats.window.samples=" + samples);
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void averagesOnlyTheLastSamples() {
+		System.setProperty("stats.window.samples", "2");
+		CallQualityMonitor quality = new CallQualityMonitor();
+		quality.report(call, "alice", stats(0, 0, 10, 0));
+		quality.report(call, "alice", stats(0, 0, 20, 0));
+		quality.report(call, "alice", stats(0, 0, 40, 0));
+
+		Map<String, Object> alice = player(quality.snapshot(false), "alice");
+		assertEquals(2, alice.get("samples"));
+		assertEquals(30.0, alice.get("jitterMs"));
+	}
+
+	@Test
+	public void lossComesFromCounterDeltas() {
+		System.setProperty("stats.window.samples", "1");
+		CallQualityMonitor quality = new CallQualityMonitor();
+		quality.report(call, "alice", stats(5, 100, 0, 0));
+		quality.report(call, "alice", stats(15, 190, 0, 0));
+
+		assertEquals(10.0, player(quality.snapshot(false), "alice")
+				.get("lossPct"));
+	}
+
+	@Test
+	public void degradedMatchIsFlaggedOnceAndRecovers() {
+		System.setProperty("stats.window.samples", "1");
+		CallQualityMonitor quality = new CallQualityMonitor();
+		quality.report(call, "bob", stats(0, 0, 0, 900));
+		quality.report(call, "bob", stats(0, 0, 0, 800));
+
+		Map<String, Object> snapshot = quality.snapshot(true);
+		assertEquals(1L, snapshot.get("alerts"));
+		assertEquals(1, snapshot.get("degraded"));
+		assertEquals(1, calls(snapshot).size());
+
+		quality.report(call, "bob", stats(0, 0, 0, 50));
+		snapshot = quality.snapshot(true);
+		assertEquals(0, snapshot.get("degraded"));
+		assertTrue(calls(snapshot).isEmpty());
+	}
+
+	@Test
+	public void reportsFromOutsideTheCallAreIgnored() {
+		CallQualityMonitor quality = new CallQualityMonitor();
+		quality.report(call, "mallory", stats(0, 0, 0, 900));
+		quality.report(null, "alice", stats(0, 0, 0, 900));
+
+		Map<String, Object> snapshot = quality.snapshot(false);
+		assertEquals(0L, snapshot.get("reports"));
+		assertEquals(0, snapshot.get("matches"));
+	}
+
+	private static JsonObject stats(long lost, long received, double jitter,
+			double rtt) {
+		JsonObject stats = new JsonObject();
+		stats.addProperty("packetsLost", lost);
+		stats.addProperty("packetsReceived", received);
+		stats.addProperty("jitterMs", jitter);
+		stats.addProperty("rttMs", rtt);
+		return stats;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static List<Map<String, Object>> calls(Map<String, Object> snapshot) {
+		return (List<Map<String, Object>>) snapshot.get("calls");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> player(Map<String, Object> snapshot,
+			String name) {
+		Map<String, Object> players = (Map<String, Object>) calls(snapshot)
+				.get(0).get("players");
+		return (Map<String, Object>) players.get(name);
+	}
+}
@@ -0,0 +1,159 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Test;
+
+//-----------------------------------------------------------------------------
+// Percentile math (through summary()), store capacity and abandon
+// accounting of CallSetupTracer.
+//-----------------------------------------------------------------------------
+public class CallSetupTracerTest {
+
+	@After
+	public void tearDown() {
+		System.clearProperty("setuptrace.store.size");
+	}
+
+	//-------------------------------------------------------------------------
+	// A completed trace with one "answer" span of the given length.
+	//-------------------------------------------------------------------------
+	static class FixedTrace extends CallSetupTrace {
+		private final long us;
+
+		FixedTrace(long us) {
+			super("alice", "bob");
+			this.us = us;
+		}
+
+		@Override
+		Map<String, Long> getSpansUs() {
+			return Collections.singletonMap("answer", us);
+		}
+
+		@Override
+		long getTotalUs() {
+			return us;
+		}
+	}
+
+	@Test
+	public void nearestRankPercentiles() {
+		// 1..100 ms, shuffled, in microseconds
+		List<Long> values = new ArrayList<Long>();
+		for (long ms = 1; ms <= 100; ms++) {
+			values.add(ms * 1000);
+		}
+		Collections.shuffle(values);
+
+		Map<String, Object> result = span(summarize(values), "answer");
+		assertEquals(100, result.get("count"));
+		assertEquals(50.0, result.get("p50Ms"));
+		assertEquals(90.0, result.get("p90Ms"));
+		assertEquals(99.0, result.get("p99Ms"));
+		assertEquals(100.0, result.get("maxMs"));
+	}
+
+	@Test
+	public void smallSamples() {
+		Map<String, Object> one = span(summarize(Arrays.asList(1500L)),
+				"answer");
+		assertEquals(1.5, one.get("p50Ms"));
+		assertEquals(1.5, one.get("p99Ms"));
+		assertEquals(1.5, one.get("maxMs"));
+
+		Map<String, Object> three = span(summarize(Arrays.asList(3000L,
+				1000L, 2000L)), "answer");
+		assertEquals(2.0, three.get("p50Ms"));
+		assertEquals(3.0, three.get("p90Ms"));
+	}
+
+	@Test
+	public void totalIsSummarizedLikeSpans() {
+		Map<String, Object> total = span(summarize(Arrays.asList(1000L,
+				4000L)), CallSetupTracer.TOTAL);
+		assertEquals(2, total.get("count"));
+		assertEquals(4.0, total.get("maxMs"));
+	}
+
+	@Test
+	public void emptyStoreHasOnlyTotalCount() {
+		Map<String, Object> summary = new CallSetupTracer().summary(10);
+		assertEquals(1, spans(summary).size());
+		Map<String, Object> total = span(summary, CallSetupTracer.TOTAL);
+		assertEquals(0, total.get("count"));
+		assertFalse(total.containsKey("p50Ms"));
+		assertFalse(total.containsKey("maxMs"));
+	}
+
+	@Test
+	public void storeSizeZeroKeepsOneTrace() {
+		System.setProperty("setuptrace.store.size", "0");
+		CallSetupTracer tracer = new CallSetupTracer();
+		tracer.complete(trace());
+		tracer.complete(trace());
+		assertEquals(1, tracer.summary(10).get("completed"));
+	}
+
+	@Test
+	public void oldestTraceIsEvicted() {
+		System.setProperty("setuptrace.store.size", "2");
+		CallSetupTracer tracer = new CallSetupTracer();
+		for (int i = 0; i < 5; i++) {
+			tracer.complete(trace());
+		}
+		Map<String, Object> summary = tracer.summary(10);
+		assertEquals(2, summary.get("completed"));
+		assertEquals(2, ((List<?>) summary.get("recent")).size());
+	}
+
+	@Test
+	public void traceIsStoredOrDroppedOnce() {
+		CallSetupTracer tracer = new CallSetupTracer();
+		CallSetupTrace trace = trace();
+		tracer.complete(trace);
+		tracer.complete(trace);
+		tracer.abandon(trace);
+		tracer.abandon(trace());
+
+		Map<String, Object> summary = tracer.summary(10);
+		assertEquals(1, summary.get("completed"));
+		assertEquals(1L, summary.get("abandoned"));
+	}
+
+	private static Map<String, Object> summarize(List<Long> spansUs) {
+		System.setProperty("setuptrace.store.size",
+				String.valueOf(spansUs.size()));
+		CallSetupTracer tracer = new CallSetupTracer();
+		for (long us : spansUs) {
+			tracer.complete(new FixedTrace(us));
+		}
+		return tracer.summary(0);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> spans(Map<String, Object> summary) {
+		return (Map<String, Object>) summary.get("spans");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> span(Map<String, Object> summary,
+			String name) {
+		return (Map<String, Object>) spans(summary).get(name);
+	}
+
+	private static CallSetupTrace trace() {
+		CallSetupTrace trace = new CallSetupTrace("alice", "bob");
+		trace.mark("incomingCall");
+		trace.mark("answer");
+		return trace;
+	}
+}
@@ -0,0 +1,209 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Hosting side of ClusterNode: remote users attached for a match get the
+// same flood protection as local sockets, and lose it when detached.
+// Messages to them are queued, so a slow node does not block the sender.
+//-----------------------------------------------------------------------------
+public class ClusterNodeTest {
+
+	// Nothing listens there, so notifications to the owner fail fast
+	private static final String OWNER = "http://127.0.0.1:1";
+	private static final String HOST = "http://127.0.0.1:2";
+
+	//-------------------------------------------------------------------------
+	// Directory shared by every node created in a test, standing in for a
+	// cluster-wide implementation.
+	//-------------------------------------------------------------------------
+	public static class SharedDirectory implements PresenceDirectory {
+		static PresenceDirectory shared;
+
+		public void join(String node) {
+			shared.join(node);
+		}
+
+		public boolean isMember(String node) {
+			return shared.isMember(node);
+		}
+
+		public boolean claim(String name, String node) {
+			return shared.claim(name, node);
+		}
+
+		public void transfer(String name, String node) {
+			shared.transfer(name, node);
+		}
+
+		public void release(String name, String node) {
+			shared.release(name, node);
+		}
+
+		public String lookup(String name) {
+			return shared.lookup(name);
+		}
+	}
+
+	private ClusterNode host;
+	private UserRegistry registry;
+	private RateLimiter rateLimiter;
+	private ServerSocket silentNode;
+	private final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+
+	@Before
+	public void setUp() throws ReflectiveOperationException {
+		SharedDirectory.shared = new LocalPresenceDirectory();
+		SharedDirectory.shared.join(OWNER);
+		SharedDirectory.shared.claim("bob", OWNER);
+
+		System.setProperty("cluster.node.url", HOST);
+		System.setProperty("cluster.secret", "s3cret");
+		System.setProperty("cluster.directory.class",
+				SharedDirectory.class.getName());
+		host = new ClusterNode();
+		registry = new UserRegistry();
+		rateLimiter = new RateLimiter();
+		ReflectionTestUtils.setField(host, "registry", registry);
+		ReflectionTestUtils.setField(host, "trace", new ProtocolTrace(16, 0));
+		ReflectionTestUtils.setField(host, "rateLimiter", rateLimiter);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		host.shutdown();
+		for (Socket socket : accepted) {
+			socket.close();
+		}
+		if (silentNode != null) {
+			silentNode.close();
+		}
+		System.clearProperty("cluster.send.queue");
+		System.clearProperty("cluster.node.url");
+		System.clearProperty("cluster.secret");
+		System.clearProperty("cluster.directory.class");
+	}
+
+	@Test
+	public void attachedUserMovesToHost() {
+		assertNull(host.attachRemote("nobody"));
+
+		UserSession bob = host.attachRemote("bob");
+		assertNotNull(bob);
+		assertEquals(bob, registry.getByName("bob"));
+		assertEquals(HOST, SharedDirectory.shared.lookup("bob"));
+		assertEquals(1, host.getProxyCount());
+	}
+
+	@Test
+	public void relayedFramesAreRateLimited() {
+		WebSocketSession proxy = host.attachRemote("bob").getSession();
+
+		// Default media burst is 3
+		for (int i = 0; i < 3; i++) {
+			assertEquals(RateLimiter.Verdict.ACCEPT,
+					rateLimiter.checkMessage(proxy, CallHandler.MSG_C2S.CALL));
+		}
+		assertEquals(RateLimiter.Verdict.DROP,
+				rateLimiter.checkMessage(proxy, CallHandler.MSG_C2S.CALL));
+	}
+
+	@Test
+	public void sendsToASilentNodeDoNotBlock() throws IOException {
+		WebSocketSession carol = host.attachRemote(silentNode()).getSession();
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 10; i++) {
+			carol.sendMessage(new TextMessage("{\"id\":\"ping\"}"));
+		}
+		long elapsedMs = (System.nanoTime() - start) / 1000000;
+		assertTrue(elapsedMs + " ms", elapsedMs < 500);
+	}
+
+	@Test
+	public void fullSendQueueFailsTheSend() throws Exception {
+		System.setProperty("cluster.send.queue", "1");
+		host = new ClusterNode();
+		ReflectionTestUtils.setField(host, "registry", registry);
+		ReflectionTestUtils.setField(host, "trace", new ProtocolTrace(16, 0));
+		ReflectionTestUtils.setField(host, "rateLimiter", rateLimiter);
+		WebSocketSession carol = host.attachRemote(silentNode()).getSession();
+
+		// One being posted, one queued
+		carol.sendMessage(new TextMessage("{}"));
+		awaitConnection();
+		carol.sendMessage(new TextMessage("{}"));
+		try {
+			carol.sendMessage(new TextMessage("{}"));
+			fail("Queued past cluster.send.queue");
+		} catch (IOException expected) {
+		}
+	}
+
+	@Test
+	public void detachDropsProxyAndLimits() {
+		UserSession bob = host.attachRemote("bob");
+		WebSocketSession proxy = bob.getSession();
+		for (int i = 0; i < 3; i++) {
+			rateLimiter.checkMessage(proxy, CallHandler.MSG_C2S.PLAY);
+		}
+
+		host.detach(bob);
+		assertNull(registry.getByName("bob"));
+		assertEquals(0, host.getProxyCount());
+		// No limits are kept for a session that is gone
+		assertEquals(RateLimiter.Verdict.ACCEPT,
+				rateLimiter.checkMessage(proxy, CallHandler.MSG_C2S.PLAY));
+	}
+
+	//-------------------------------------------------------------------------
+	// Registers "carol" on a node that accepts connections but never
+	// answers, and returns her name.
+	//-------------------------------------------------------------------------
+	private String silentNode() throws IOException {
+		silentNode = new ServerSocket(0);
+		String url = "http://127.0.0.1:" + silentNode.getLocalPort();
+		SharedDirectory.shared.join(url);
+		SharedDirectory.shared.claim("carol", url);
+		Thread acceptor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						accepted.add(silentNode.accept());
+					}
+				} catch (IOException e) {
+					// closed by tearDown
+				}
+			}
+		});
+		acceptor.setDaemon(true);
+		acceptor.start();
+		return "carol";
+	}
+
+	private void awaitConnection() throws InterruptedException {
+		for (int i = 0; i < 200 && accepted.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		assertFalse(accepted.isEmpty());
+	}
+}
@@ -0,0 +1,93 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+//-----------------------------------------------------------------------------
+// When a drain lets the process exit: as soon as no game is in progress,
+// or at drain.deadline.sec with games still running.
+//-----------------------------------------------------------------------------
+public class DrainManagerTest {
+
+	static class TestDrainManager extends DrainManager {
+		final CountDownLatch exited = new CountDownLatch(1);
+
+		@Override
+		void exit() {
+			exited.countDown();
+		}
+	}
+
+	static class TestCallHandler extends CallHandler {
+		final AtomicInteger activeMatches = new AtomicInteger();
+
+		@Override
+		public int getActiveMatchCount() {
+			return activeMatches.get();
+		}
+	}
+
+	private TestDrainManager drain;
+	private TestCallHandler calls;
+
+	@Before
+	public void setUp() {
+		System.setProperty("drain.deadline.sec", "2");
+		drain = new TestDrainManager();
+		calls = new TestCallHandler();
+		ReflectionTestUtils.setField(drain, "callHandler", calls);
+	}
+
+	@After
+	public void tearDown() {
+		drain.stop();
+		System.clearProperty("drain.deadline.sec");
+	}
+
+	@Test
+	public void idleServerExitsAtOnce() throws InterruptedException {
+		assertTrue(drain.start());
+		assertTrue(drain.isDraining());
+		assertTrue(drain.exited.await(500, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void exitsWhenTheLastGameEnds() throws InterruptedException {
+		calls.activeMatches.set(1);
+		drain.start();
+		assertFalse(drain.exited.await(1200, TimeUnit.MILLISECONDS));
+		assertEquals(1, drain.getActiveMatches());
+
+		calls.activeMatches.set(0);
+		assertTrue(drain.exited.await(DrainManager.CHECK_INTERVAL_MS + 500,
+				TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void deadlineEndsRunningGames() throws InterruptedException {
+		calls.activeMatches.set(2);
+		long start = System.nanoTime();
+		drain.start();
+
+		assertTrue(drain.exited.await(4, TimeUnit.SECONDS));
+		long elapsedMs = (System.nanoTime() - start) / 1000000;
+		assertTrue(elapsedMs + " ms", elapsedMs >= 2000);
+	}
+
+	@Test
+	public void secondStartIsRefused() {
+		calls.activeMatches.set(1);
+		assertTrue(drain.start());
+		assertFalse(drain.start());
+	}
+}
@@ -0,0 +1,63 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.KurentoClient;
+import org.kurento.jsonrpc.client.JsonRpcClient;
+
+import com.google.gson.JsonObject;
+
+//-----------------------------------------------------------------------------
+// JSON-RPC transport standing in for KMS in tests. Every create succeeds
+// with a new object id and every operation returns "result-<operation>",
+// except failOperation, which fails as a transport error would. Released
+// object ids are kept in order.
+//-----------------------------------------------------------------------------
+class FakeKms extends JsonRpcClient {
+
+	final List<String> released = new CopyOnWriteArrayList<String>();
+	final AtomicInteger created = new AtomicInteger();
+	volatile String failOperation;
+	volatile boolean closed;
+
+	KurentoClient client() {
+		return KurentoClient.createFromJsonRpcClient(this);
+	}
+
+	@Override
+	public <R> R sendRequest(String method, Object params, Class<R> type)
+			throws IOException {
+		JsonObject request = (JsonObject) params;
+		JsonObject result = new JsonObject();
+		switch (method) {
+		case "create":
+			result.addProperty("value", "object-" + created.incrementAndGet());
+			break;
+		case "release":
+			released.add(request.get("object").getAsString());
+			break;
+		case "invoke":
+			String operation = request.get("operation").getAsString();
+			if (operation.equals(failOperation)) {
+				throw new IOException(operation + " failed");
+			}
+			result.addProperty("value", "result-" + operation);
+			break;
+		default:
+			break;
+		}
+		return type.cast(result);
+	}
+
+	@Override
+	public void connect() {
+	}
+
+	@Override
+	public void close() {
+		closed = true;
+	}
+}
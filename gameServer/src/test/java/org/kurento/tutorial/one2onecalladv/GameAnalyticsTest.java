@@ -0,0 +1,152 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Map;
+
+import org.junit.Test;
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.kurento.tutorial.one2onecalladv.UserSession.Role;
+
+//-----------------------------------------------------------------------------
+// Aggregation of finished games by GameAnalytics: phase drop-off, per-role
+// results and per-image accuracy.
+//-----------------------------------------------------------------------------
+public class GameAnalyticsTest {
+
+	private static final String HAT = "./img/Hat.png";
+
+	private final GameAnalytics analytics = new GameAnalytics();
+
+	@Test
+	public void countsPhasesEntered() {
+		UserSession a = player("alice", Role.INTERROGATOR);
+		UserSession b = player("bob", Role.DESCRIBER);
+		analytics.onEnter(GameState.REVIEWING_IMAGE, a, b);
+		analytics.onEnter(GameState.REVIEWING_IMAGE, a, b);
+		analytics.onEnter(GameState.FIRST_INTERROGATION, a, b);
+
+		Map<String, Object> phases = section(analytics.snapshot(), "phases");
+		assertEquals(2L, phases.get("REVIEWING_IMAGE"));
+		assertEquals(1L, phases.get("FIRST_INTERROGATION"));
+		assertEquals(0L, phases.get("POST_SURVEY"));
+	}
+
+	@Test
+	public void accuracyPerImageAndDecision() {
+		finish(HAT, GameAnalytics.TRUTH, "bluff", GameAnalytics.TRUTH);
+		finish(HAT, GameAnalytics.TRUTH, GameAnalytics.TRUTH,
+				GameAnalytics.TRUTH);
+		finish(HAT, GameAnalytics.TRUTH, "bluff", "bluff");
+		finish(HAT, GameAnalytics.TRUTH, GameAnalytics.TRUTH, null);
+
+		Map<String, Object> hat = section(section(analytics.snapshot(),
+				"images"), HAT);
+		assertEquals(4L, hat.get("GAMES"));
+		assertEquals(1L, hat.get("CHANGED_AFTER_HINT"));
+		assertEquals(1L, hat.get("CORRECTED_AFTER_HINT"));
+
+		Map<String, Object> first = section(hat, "FIRST");
+		assertEquals(2L, first.get("CORRECT"));
+		assertEquals(2L, first.get("WRONG"));
+		assertEquals(0L, first.get("UNKNOWN"));
+		assertEquals(0.5, first.get("accuracy"));
+
+		Map<String, Object> second = section(hat, "SECOND");
+		assertEquals(2L, second.get("CORRECT"));
+		assertEquals(1L, second.get("WRONG"));
+		assertEquals(1L, second.get("UNKNOWN"));
+		assertEquals(2.0 / 3, (Double) second.get("accuracy"), 1e-9);
+	}
+
+	@Test
+	public void missingDecisionsAreUnknownNotBluff() {
+		finish(HAT, GameAnalytics.TRUTH, null, null);
+
+		Map<String, Object> hat = section(section(analytics.snapshot(),
+				"images"), HAT);
+		Map<String, Object> first = section(hat, "FIRST");
+		assertEquals(0L, first.get("WRONG"));
+		assertEquals(1L, first.get("UNKNOWN"));
+		assertNull(first.get("accuracy"));
+		assertEquals(0L, hat.get("CHANGED_AFTER_HINT"));
+	}
+
+	@Test
+	public void rolesWinOppositeResults() {
+		finish(HAT, GameAnalytics.TRUTH, "bluff", GameAnalytics.TRUTH);
+		finish(HAT, GameAnalytics.TRUTH, "bluff", null);
+
+		Map<String, Object> roles = section(analytics.snapshot(), "roles");
+		Map<String, Object> interrogatorFirst = section(
+				section(roles, "INTERROGATOR"), "FIRST");
+		assertEquals(0L, interrogatorFirst.get("WON"));
+		assertEquals(2L, interrogatorFirst.get("LOST"));
+		Map<String, Object> describerFirst = section(
+				section(roles, "DESCRIBER"), "FIRST");
+		assertEquals(2L, describerFirst.get("WON"));
+
+		Map<String, Object> interrogatorSecond = section(
+				section(roles, "INTERROGATOR"), "SECOND");
+		assertEquals(1L, interrogatorSecond.get("WON"));
+		assertEquals(0L, interrogatorSecond.get("LOST"));
+		assertEquals(1L, interrogatorSecond.get("UNDECIDED"));
+	}
+
+	@Test
+	public void unknownTruthIsNotScored() {
+		finish(HAT, null, GameAnalytics.TRUTH, GameAnalytics.TRUTH);
+
+		Map<String, Object> second = section(section(section(
+				analytics.snapshot(), "images"), HAT), "SECOND");
+		assertEquals(0L, second.get("CORRECT"));
+		assertEquals(1L, second.get("UNKNOWN"));
+	}
+
+	@Test
+	public void stripedCountersSumStripes() throws InterruptedException {
+		final GameAnalytics.StripedCounters counters = new GameAnalytics.StripedCounters(
+				3);
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			threads[t] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < 1000; i++) {
+						counters.increment(1);
+					}
+				}
+			});
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertEquals(0, counters.get(0));
+		assertEquals(4000, counters.get(1));
+		assertEquals(0, counters.get(2));
+	}
+
+	private void finish(String image, String truth, String firstDecision,
+			String secondDecision) {
+		UserSession a = player("alice", Role.INTERROGATOR);
+		UserSession b = player("bob", Role.DESCRIBER);
+		a.imageName = b.imageName = image;
+		a.truth = b.truth = truth;
+		a.firstDecision = b.firstDecision = firstDecision;
+		a.secondDecision = b.secondDecision = secondDecision;
+		analytics.onEnter(GameState.POST_SURVEY, a, b);
+	}
+
+	private static UserSession player(String name, Role role) {
+		UserSession user = new UserSession(null, name, null);
+		user.role = role;
+		return user;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Object> section(Map<String, ?> map, String key) {
+		return (Map<String, Object>) map.get(key);
+	}
+}
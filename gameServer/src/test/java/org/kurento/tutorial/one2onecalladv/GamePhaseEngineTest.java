@@ -0,0 +1,280 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.tutorial.one2onecalladv.GamePhaseEngine.Trigger;
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.springframework.test.util.ReflectionTestUtils;
+
+//-----------------------------------------------------------------------------
+// The default transition table (game.properties), config validation,
+// joint/personal triggers, phase timers and trigger actions of
+// GamePhaseEngine, driven through fire() like CallHandler does.
+//-----------------------------------------------------------------------------
+public class GamePhaseEngineTest {
+
+	private GamePhaseEngine engine;
+	private UserSession alice;
+	private UserSession bob;
+	private final List<GameState> entered = new CopyOnWriteArrayList<GameState>();
+	private final List<File> configs = new ArrayList<File>();
+
+	@Before
+	public void setUp() throws IOException {
+		engine = engine(null);
+	}
+
+	@After
+	public void tearDown() {
+		engine.stop();
+		System.clearProperty("game.config");
+		for (File config : configs) {
+			config.delete();
+		}
+	}
+
+	@Test
+	public void defaultTableWalksThroughTheGame() throws Exception {
+		// The default table with every timed phase ending at once
+		Properties table = new Properties();
+		InputStream in = GamePhaseEngine.class
+				.getResourceAsStream(GamePhaseEngine.DEFAULT_CONFIG);
+		try {
+			table.load(in);
+		} finally {
+			in.close();
+		}
+		StringBuilder config = new StringBuilder();
+		for (String key : table.stringPropertyNames()) {
+			config.append(key).append(" = ").append(
+					key.startsWith("phase.") ? "0" : table.getProperty(key))
+					.append('\n');
+		}
+		engine.stop();
+		engine = engine(config.toString());
+		alice.gameState = bob.gameState = GameState.WAITING_FOR_VIDEO_CONFIRM;
+
+		assertTrue(engine.fire(alice, Trigger.CONFIRM_VIDEO));
+		assertTrue(engine.fire(bob, Trigger.CONFIRM_VIDEO));
+		assertTrue(engine.fire(alice, Trigger.START_GAME));
+		assertTrue(engine.fire(bob, Trigger.START_GAME));
+		await(GameState.FIRST_RESPONSE);
+		assertTrue(engine.fire(bob, Trigger.FIRST_DECISION));
+		await(GameState.SECOND_RESPONSE);
+		assertTrue(engine.fire(bob, Trigger.SECOND_DECISION));
+
+		assertEquals(Arrays.asList(GameState.WAITING_FOR_START,
+				GameState.REVIEWING_IMAGE, GameState.FIRST_INTERROGATION,
+				GameState.FIRST_RESPONSE, GameState.SECOND_INTERROGATION,
+				GameState.SECOND_RESPONSE, GameState.POST_SURVEY), entered);
+	}
+
+	@Test
+	public void unlistedTriggersDoNotApply() throws IOException {
+		alice.gameState = bob.gameState = GameState.NOT_CONNECTED;
+		assertFalse(engine.fire(alice, Trigger.CONFIRM_VIDEO));
+		alice.gameState = bob.gameState = GameState.REVIEWING_IMAGE;
+		assertFalse(engine.fire(alice, Trigger.FIRST_DECISION));
+		alice.gameState = bob.gameState = GameState.POST_SURVEY;
+		assertFalse(engine.fire(alice, Trigger.SECOND_DECISION));
+		assertTrue(entered.isEmpty());
+	}
+
+	@Test
+	public void triggerWithoutPeerIsRejected() throws IOException {
+		UserSession carol = new UserSession(new RemoteWebSocketSession(null,
+				"http://node", "carol"), "carol", null);
+		carol.gameState = GameState.WAITING_FOR_VIDEO_CONFIRM;
+		assertFalse(engine.fire(carol, Trigger.CONFIRM_VIDEO));
+		assertEquals(GameState.WAITING_FOR_VIDEO_CONFIRM, carol.gameState);
+	}
+
+	@Test
+	public void defaultPhaseDurations() {
+		assertEquals(30, engine.getDurationSeconds(GameState.REVIEWING_IMAGE));
+		assertEquals(60,
+				engine.getDurationSeconds(GameState.FIRST_INTERROGATION));
+		assertEquals(60,
+				engine.getDurationSeconds(GameState.SECOND_INTERROGATION));
+		assertEquals(0, engine.getDurationSeconds(GameState.FIRST_RESPONSE));
+	}
+
+	@Test
+	public void badConfigKeyFailsStartup() throws IOException {
+		assertConfigRejected("transition.REVIEWING_IMAGE = FIRST_RESPONSE\n");
+		assertConfigRejected("transition.REVIEWING_IMAGE.nope = FIRST_RESPONSE\n");
+		assertConfigRejected("phase.REVIEWING_IMAGE.minutes = 1\n");
+		assertConfigRejected("transition.NO_SUCH_STATE.timeout = POST_SURVEY\n");
+	}
+
+	@Test
+	public void personalTriggerWaitsForPeer() throws IOException {
+		alice.gameState = bob.gameState = GameState.WAITING_FOR_VIDEO_CONFIRM;
+
+		assertTrue(engine.fire(alice, Trigger.CONFIRM_VIDEO));
+		assertEquals(GameState.WAITING_FOR_PEER_CONFIRM, alice.gameState);
+		assertEquals(GameState.WAITING_FOR_VIDEO_CONFIRM, bob.gameState);
+		assertTrue(entered.isEmpty());
+
+		// Repeating the trigger does not apply in the new state
+		assertFalse(engine.fire(alice, Trigger.CONFIRM_VIDEO));
+
+		assertTrue(engine.fire(bob, Trigger.CONFIRM_VIDEO));
+		assertEquals(GameState.WAITING_FOR_START, alice.gameState);
+		assertEquals(GameState.WAITING_FOR_START, bob.gameState);
+		assertEquals(Arrays.asList(GameState.WAITING_FOR_START), entered);
+	}
+
+	@Test
+	public void jointTriggerNeedsPlayersInSync() throws IOException {
+		alice.gameState = GameState.FIRST_RESPONSE;
+		bob.gameState = GameState.FIRST_INTERROGATION;
+		assertFalse(engine.fire(alice, Trigger.FIRST_DECISION));
+
+		bob.gameState = GameState.FIRST_RESPONSE;
+		assertTrue(engine.fire(alice, Trigger.FIRST_DECISION));
+		assertEquals(GameState.SECOND_INTERROGATION, alice.gameState);
+		assertEquals(GameState.SECOND_INTERROGATION, bob.gameState);
+		assertEquals(alice.phaseSeq, bob.phaseSeq);
+	}
+
+	@Test
+	public void actionRunsOnlyForAcceptedTriggers() throws IOException {
+		final List<GameState> seenByListener = new ArrayList<GameState>();
+		engine.addListener(new GamePhaseEngine.PhaseListener() {
+			@Override
+			public void onEnter(GameState state, UserSession a, UserSession b) {
+				if (a.firstDecision != null) {
+					seenByListener.add(state);
+				}
+			}
+		});
+		GamePhaseEngine.TransitionAction decide = new GamePhaseEngine.TransitionAction() {
+			@Override
+			public void apply(UserSession user, UserSession peer) {
+				user.firstDecision = peer.firstDecision = "bluff";
+			}
+		};
+
+		// Out of phase: nothing is stored
+		alice.gameState = bob.gameState = GameState.FIRST_INTERROGATION;
+		assertFalse(engine.fire(alice, Trigger.FIRST_DECISION, decide));
+		assertNull(alice.firstDecision);
+
+		alice.gameState = bob.gameState = GameState.FIRST_RESPONSE;
+		assertTrue(engine.fire(alice, Trigger.FIRST_DECISION, decide));
+		assertEquals("bluff", bob.firstDecision);
+		assertEquals(Arrays.asList(GameState.SECOND_INTERROGATION),
+				seenByListener);
+	}
+
+	@Test
+	public void phaseTimerMovesPlayersOn() throws Exception {
+		engine.stop();
+		engine = engine(TIMED);
+		alice.gameState = bob.gameState = GameState.FIRST_RESPONSE;
+		assertTrue(engine.fire(alice, Trigger.FIRST_DECISION));
+
+		await(GameState.POST_SURVEY);
+		assertEquals(GameState.POST_SURVEY, alice.gameState);
+	}
+
+	@Test
+	public void staleTimerIsIgnored() throws Exception {
+		engine.stop();
+		engine = engine(TIMED);
+		alice.gameState = bob.gameState = GameState.FIRST_RESPONSE;
+		assertTrue(engine.fire(alice, Trigger.FIRST_DECISION));
+
+		// A new instance of the same phase must not be ended by the old timer
+		engine.reset(alice, bob);
+		alice.gameState = bob.gameState = GameState.REVIEWING_IMAGE;
+		Thread.sleep(1500);
+		assertEquals(GameState.REVIEWING_IMAGE, alice.gameState);
+		assertEquals(GameState.REVIEWING_IMAGE, bob.gameState);
+		assertEquals(Arrays.asList(GameState.REVIEWING_IMAGE), entered);
+	}
+
+	// A one-second phase entered with a joint trigger
+	private static final String TIMED = "transition.FIRST_RESPONSE.firstDecision = REVIEWING_IMAGE\n"
+			+ "transition.REVIEWING_IMAGE.timeout = POST_SURVEY\n"
+			+ "phase.REVIEWING_IMAGE.seconds = 1\n";
+
+	//-------------------------------------------------------------------------
+	// An engine with the given table (null for the default one) and alice
+	// and bob registered in a call with each other.
+	//-------------------------------------------------------------------------
+	private GamePhaseEngine engine(String config) throws IOException {
+		if (config != null) {
+			System.setProperty("game.config", write(config).getPath());
+		}
+		GamePhaseEngine engine = new GamePhaseEngine();
+		UserRegistry registry = new UserRegistry();
+		ReflectionTestUtils.setField(engine, "registry", registry);
+		alice = player(registry, "alice");
+		bob = player(registry, "bob");
+		alice.setCallingTo("bob");
+		bob.setCallingFrom("alice");
+		entered.clear();
+		engine.addListener(new GamePhaseEngine.PhaseListener() {
+			@Override
+			public void onEnter(GameState state, UserSession a, UserSession b) {
+				entered.add(state);
+			}
+		});
+		return engine;
+	}
+
+	private static UserSession player(UserRegistry registry, String name) {
+		UserSession user = new UserSession(new RemoteWebSocketSession(null,
+				"http://node", name), name, null);
+		registry.register(user);
+		return user;
+	}
+
+	private void await(GameState state) throws InterruptedException {
+		for (int i = 0; i < 300 && !entered.contains(state); i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(entered + " has no " + state, entered.contains(state));
+	}
+
+	private File write(String config) throws IOException {
+		File file = File.createTempFile("game", ".properties");
+		configs.add(file);
+		Writer out = new FileWriter(file);
+		try {
+			out.write(config);
+		} finally {
+			out.close();
+		}
+		return file;
+	}
+
+	private void assertConfigRejected(String config) throws IOException {
+		System.setProperty("game.config", write(config).getPath());
+		try {
+			new GamePhaseEngine().stop();
+			fail("Accepted " + config.trim());
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+}
@@ -0,0 +1,168 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.PingMessage;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Eviction timing of HeartbeatMonitor: silent sessions go within one
+// interval after the timeout, live and closed ones are told apart, and a
+// socket busy with another frame is not pinged.
+//-----------------------------------------------------------------------------
+public class HeartbeatMonitorTest {
+
+	private static final long INTERVAL_MS = 100;
+	private static final long TIMEOUT_MS = 300;
+
+	//-------------------------------------------------------------------------
+	// Counts pings; text frames block until released, like a stuck socket.
+	//-------------------------------------------------------------------------
+	static class TestSocket extends RemoteWebSocketSession {
+		final AtomicInteger pings = new AtomicInteger();
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+
+		TestSocket(String name) {
+			super(null, "http://node", name);
+		}
+
+		@Override
+		public void sendMessage(WebSocketMessage<?> message) throws IOException {
+			if (message instanceof PingMessage) {
+				pings.incrementAndGet();
+				return;
+			}
+			writing.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private HeartbeatMonitor heartbeat;
+	private final List<WebSocketSession> evicted = new CopyOnWriteArrayList<WebSocketSession>();
+	private final List<Long> evictedAt = new CopyOnWriteArrayList<Long>();
+
+	@Before
+	public void setUp() {
+		heartbeat = new HeartbeatMonitor(INTERVAL_MS, TIMEOUT_MS);
+		heartbeat.setListener(new HeartbeatMonitor.DeadSessionListener() {
+			@Override
+			public void onDeadSession(WebSocketSession session) {
+				evictedAt.add(System.nanoTime());
+				evicted.add(session);
+			}
+		});
+		heartbeat.start();
+	}
+
+	@After
+	public void tearDown() {
+		heartbeat.stop();
+	}
+
+	@Test
+	public void timeoutShorterThanIntervalIsRejected() {
+		try {
+			new HeartbeatMonitor(1000, 999);
+			fail("Accepted a timeout shorter than the interval");
+		} catch (IllegalArgumentException expected) {
+		}
+	}
+
+	@Test
+	public void silentSessionIsEvictedWithinAnIntervalOfTimeout()
+			throws InterruptedException {
+		long start = System.nanoTime();
+		TestSocket socket = new TestSocket("silent");
+		heartbeat.add(socket);
+
+		awaitEvictions(1);
+		long detectedMs = (evictedAt.get(0) - start) / 1000000;
+		assertTrue(detectedMs + " ms", detectedMs > TIMEOUT_MS);
+		assertTrue(detectedMs + " ms", detectedMs <= TIMEOUT_MS + INTERVAL_MS
+				+ 50);
+		assertEquals(socket, evicted.get(0));
+		assertEquals(0, heartbeat.getSessionCount());
+		assertEquals(1, heartbeat.getEvictions());
+		assertTrue(heartbeat.getMaxDetectionMs() > TIMEOUT_MS);
+		assertTrue(socket.pings.get() >= 2);
+	}
+
+	@Test
+	public void touchedSessionIsKept() throws InterruptedException {
+		TestSocket socket = new TestSocket("alive");
+		heartbeat.add(socket);
+		for (int i = 0; i < 12; i++) {
+			Thread.sleep(INTERVAL_MS / 2);
+			heartbeat.touch(socket);
+		}
+		assertTrue(evicted.isEmpty());
+		assertEquals(1, heartbeat.getSessionCount());
+	}
+
+	@Test
+	public void closedSessionIsEvictedBeforeTimeout()
+			throws InterruptedException, IOException {
+		long start = System.nanoTime();
+		TestSocket socket = new TestSocket("closed");
+		heartbeat.add(socket);
+		socket.close();
+
+		awaitEvictions(1);
+		long detectedMs = (evictedAt.get(0) - start) / 1000000;
+		assertTrue(detectedMs + " ms", detectedMs < TIMEOUT_MS);
+	}
+
+	@Test
+	public void busySocketIsNotPinged() throws Exception {
+		final TestSocket socket = new TestSocket("busy");
+		heartbeat.add(socket);
+		Thread writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					SessionWriter.send(socket, new TextMessage("{}"));
+				} catch (IOException e) {
+					// not thrown by the test socket
+				}
+			}
+		});
+		writer.start();
+		assertTrue(socket.writing.await(1, TimeUnit.SECONDS));
+
+		Thread.sleep(2 * INTERVAL_MS + 50);
+		assertEquals(0, socket.pings.get());
+		assertTrue(heartbeat.getSkippedPings() >= 1);
+
+		socket.release.countDown();
+		writer.join();
+		heartbeat.touch(socket); // not silent past the timeout
+		Thread.sleep(INTERVAL_MS + 50);
+		assertTrue(socket.pings.get() >= 1);
+	}
+
+	private void awaitEvictions(int count) throws InterruptedException {
+		for (int i = 0; i < 200 && evicted.size() < count; i++) {
+			Thread.sleep(5);
+		}
+		assertEquals(count, evicted.size());
+	}
+}
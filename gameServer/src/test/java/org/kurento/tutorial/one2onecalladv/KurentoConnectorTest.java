@@ -0,0 +1,127 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.KurentoConnectionListener;
+
+//-----------------------------------------------------------------------------
+// Background connection, retries and loss handling of KurentoConnector,
+// against in-process clients (see FakeKms).
+//-----------------------------------------------------------------------------
+public class KurentoConnectorTest {
+
+	static class TestConnector extends KurentoConnector {
+		final List<KurentoConnectionListener> listeners = new CopyOnWriteArrayList<KurentoConnectionListener>();
+		final List<FakeKms> servers = new CopyOnWriteArrayList<FakeKms>();
+		final AtomicInteger failures = new AtomicInteger();
+
+		@Override
+		KurentoClient createClient(KurentoConnectionListener listener)
+				throws IOException {
+			if (failures.getAndDecrement() > 0) {
+				throw new IOException("connection refused");
+			}
+			FakeKms server = new FakeKms();
+			servers.add(server);
+			listeners.add(listener);
+			return server.client();
+		}
+	}
+
+	private TestConnector connector;
+	private final AtomicInteger losses = new AtomicInteger();
+
+	@Before
+	public void setUp() {
+		System.setProperty("kms.reconnect.initial.ms", "10");
+		System.setProperty("kms.reconnect.max.ms", "40");
+		connector = new TestConnector();
+		connector.setListener(new KurentoConnector.ConnectionLostListener() {
+			@Override
+			public void onConnectionLost() {
+				losses.incrementAndGet();
+			}
+		});
+	}
+
+	@After
+	public void tearDown() {
+		connector.stop();
+		System.clearProperty("kms.reconnect.initial.ms");
+		System.clearProperty("kms.reconnect.max.ms");
+	}
+
+	@Test
+	public void retriesUntilConnected() throws InterruptedException {
+		connector.failures.set(3);
+		connector.start();
+		awaitReady(1);
+		assertEquals(0, losses.get());
+	}
+
+	@Test
+	public void lossEndsCallsAndReconnects() throws InterruptedException {
+		connector.start();
+		awaitReady(1);
+
+		connector.listeners.get(0).disconnected();
+		awaitLosses(1);
+		awaitReady(2);
+		assertTrue(connector.servers.get(0).closed);
+	}
+
+	@Test
+	public void replacedClientIsNotALoss() throws InterruptedException {
+		connector.start();
+		awaitReady(1);
+		connector.listeners.get(0).connectionTimeout();
+		awaitReady(2);
+
+		// Late events of the destroyed client
+		connector.listeners.get(0).disconnected();
+		connector.listeners.get(0).connectionTimeout();
+		Thread.sleep(50);
+		assertTrue(connector.isReady());
+		assertEquals(1, losses.get());
+		assertEquals(2, connector.listeners.size());
+	}
+
+	@Test
+	public void stopIsNotALoss() throws InterruptedException {
+		connector.start();
+		awaitReady(1);
+		connector.stop();
+		connector.listeners.get(0).disconnected();
+		assertFalse(connector.isReady());
+		assertEquals(0, losses.get());
+	}
+
+	private void awaitReady(int clients) throws InterruptedException {
+		for (int i = 0; i < 500; i++) {
+			if (connector.isReady() && connector.listeners.size() == clients) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("Not connected with " + clients
+				+ " clients, have " + connector.listeners.size());
+	}
+
+	private void awaitLosses(int expected) throws InterruptedException {
+		for (int i = 0; i < 500 && losses.get() < expected; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(expected, losses.get());
+	}
+}
@@ -0,0 +1,66 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+//-----------------------------------------------------------------------------
+// Ownership rules of LocalPresenceDirectory: claim, transfer, release and
+// cluster membership.
+//-----------------------------------------------------------------------------
+public class LocalPresenceDirectoryTest {
+
+	private static final String NODE_A = "http://a:8080";
+	private static final String NODE_B = "http://b:8080";
+
+	@Test
+	public void claimIsExclusive() {
+		PresenceDirectory directory = new LocalPresenceDirectory();
+		assertNull(directory.lookup("alice"));
+
+		assertTrue(directory.claim("alice", NODE_A));
+		assertTrue(directory.claim("alice", NODE_A)); // re-claim by the owner
+		assertFalse(directory.claim("alice", NODE_B));
+		assertEquals(NODE_A, directory.lookup("alice"));
+	}
+
+	@Test
+	public void transferMovesOwnership() {
+		PresenceDirectory directory = new LocalPresenceDirectory();
+		directory.claim("alice", NODE_A);
+
+		directory.transfer("alice", NODE_B);
+		assertEquals(NODE_B, directory.lookup("alice"));
+		assertFalse(directory.claim("alice", NODE_A));
+
+		directory.transfer("alice", NODE_A);
+		assertEquals(NODE_A, directory.lookup("alice"));
+	}
+
+	@Test
+	public void onlyOwnerReleases() {
+		PresenceDirectory directory = new LocalPresenceDirectory();
+		directory.claim("alice", NODE_A);
+
+		directory.release("alice", NODE_B);
+		assertEquals(NODE_A, directory.lookup("alice"));
+
+		directory.release("alice", NODE_A);
+		assertNull(directory.lookup("alice"));
+		assertTrue(directory.claim("alice", NODE_B));
+	}
+
+	@Test
+	public void membership() {
+		PresenceDirectory directory = new LocalPresenceDirectory();
+		assertFalse(directory.isMember(NODE_A));
+		assertFalse(directory.isMember(null));
+
+		directory.join(NODE_A);
+		assertTrue(directory.isMember(NODE_A));
+		assertFalse(directory.isMember(NODE_B));
+	}
+}
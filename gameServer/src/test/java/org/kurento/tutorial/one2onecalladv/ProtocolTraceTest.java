@@ -0,0 +1,129 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+import org.kurento.tutorial.one2onecalladv.ProtocolTrace.Direction;
+
+//-----------------------------------------------------------------------------
+// Ring buffer sizing, ordering, wraparound, filtering and sampling of
+// ProtocolTrace, and record consistency under concurrent writers.
+//-----------------------------------------------------------------------------
+public class ProtocolTraceTest {
+
+	@Test
+	public void capacityRoundsUpToPowerOfTwo() {
+		assertEquals(4, new ProtocolTrace(4, 0).getCapacity());
+		assertEquals(8, new ProtocolTrace(5, 0).getCapacity());
+		assertEquals(8192, new ProtocolTrace(8192, 0).getCapacity());
+		assertEquals(4, new ProtocolTrace(1, 0).getCapacity());
+	}
+
+	@Test
+	public void dumpIsOldestFirst() {
+		ProtocolTrace trace = new ProtocolTrace(8, 0);
+		trace.record(Direction.IN, "s1", "register", "{}");
+		trace.record(Direction.OUT, "s1", "registerResponse", "{\"a\":1}");
+
+		List<Map<String, Object>> records = trace.dump(null);
+		assertEquals(2, records.size());
+		assertEquals("register", records.get(0).get("id"));
+		assertEquals("IN", records.get(0).get("dir"));
+		assertEquals(2, records.get(0).get("size"));
+		assertEquals("registerResponse", records.get(1).get("id"));
+		assertEquals("OUT", records.get(1).get("dir"));
+		assertFalse(records.get(0).containsKey("payload"));
+	}
+
+	@Test
+	public void sizeIsInUtf8Bytes() {
+		ProtocolTrace trace = new ProtocolTrace(8, 0);
+		trace.record(Direction.IN, "s", "chat", "\u00e9\u20ac\ud83d\ude00");
+
+		assertEquals(2 + 3 + 4, trace.dump(null).get(0).get("size"));
+	}
+
+	@Test
+	public void wraparoundKeepsNewest() {
+		ProtocolTrace trace = new ProtocolTrace(4, 0);
+		for (int i = 0; i < 10; i++) {
+			trace.record(Direction.IN, "s", "m" + i, "");
+		}
+		assertEquals(10, trace.getRecorded());
+
+		List<Map<String, Object>> records = trace.dump(null);
+		assertEquals(4, records.size());
+		for (int i = 0; i < 4; i++) {
+			assertEquals("m" + (6 + i), records.get(i).get("id"));
+		}
+	}
+
+	@Test
+	public void filterKeepsListedSessions() {
+		ProtocolTrace trace = new ProtocolTrace(8, 0);
+		trace.record(Direction.IN, "s1", "a", "");
+		trace.record(Direction.IN, "s2", "b", "");
+		trace.record(Direction.IN, "s1", "c", "");
+
+		List<Map<String, Object>> records = trace.dump(Collections
+				.singleton("s1"));
+		assertEquals(2, records.size());
+		assertEquals("a", records.get(0).get("id"));
+		assertEquals("c", records.get(1).get("id"));
+	}
+
+	@Test
+	public void payloadKeptForSampledRecords() {
+		ProtocolTrace trace = new ProtocolTrace(8, 3);
+		for (int i = 0; i < 6; i++) {
+			trace.record(Direction.IN, "s", "m" + i, "p" + i);
+		}
+		List<Map<String, Object>> records = trace.dump(null);
+		for (int i = 0; i < 6; i++) {
+			Object payload = records.get(i).get("payload");
+			assertEquals((i % 3 == 0) ? "p" + i : null, payload);
+		}
+	}
+
+	@Test
+	public void concurrentWritersNeverTearRecords() throws InterruptedException {
+		final ProtocolTrace trace = new ProtocolTrace(64, 1);
+		final AtomicBoolean running = new AtomicBoolean(true);
+		Thread[] writers = new Thread[4];
+		for (int w = 0; w < writers.length; w++) {
+			final String session = "s" + w;
+			writers[w] = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; running.get(); i++) {
+						trace.record(Direction.IN, session, session + ":" + i,
+								session + ":" + i);
+					}
+				}
+			});
+			writers[w].start();
+		}
+
+		try {
+			for (int n = 0; n < 500; n++) {
+				for (Map<String, Object> record : trace.dump(null)) {
+					String id = (String) record.get("id");
+					assertTrue(id, id.startsWith(record.get("session") + ":"));
+					assertEquals(id, record.get("payload"));
+				}
+			}
+		} finally {
+			running.set(false);
+			for (Thread writer : writers) {
+				writer.join();
+			}
+		}
+	}
+}
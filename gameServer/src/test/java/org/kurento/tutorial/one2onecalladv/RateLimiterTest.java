@@ -0,0 +1,85 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Token buckets, byte counting and the per-type limits of RateLimiter.
+//-----------------------------------------------------------------------------
+public class RateLimiterTest {
+
+	@Test
+	public void bucketAllowsBurstThenRefills() throws InterruptedException {
+		RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(100, 3);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+
+		Thread.sleep(50); // ~5 tokens at 100/s, capped at 3
+		assertTrue(bucket.tryAcquire());
+	}
+
+	@Test
+	public void bucketNeverExceedsCapacity() throws InterruptedException {
+		RateLimiter.TokenBucket bucket = new RateLimiter.TokenBucket(1000, 2);
+		Thread.sleep(20);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void utf8LengthCountsBytes() {
+		assertEquals(5, RateLimiter.utf8Length("hello", 100));
+		assertEquals(2, RateLimiter.utf8Length("\u00e9", 100));
+		assertEquals(3, RateLimiter.utf8Length("\u20ac", 100));
+		assertEquals(4, RateLimiter.utf8Length("\ud83d\ude00", 100));
+	}
+
+	@Test
+	public void utf8LengthStopsPastLimit() {
+		assertTrue(RateLimiter.utf8Length("\u20ac\u20ac\u20ac\u20ac", 4) > 4);
+	}
+
+	@Test
+	public void mediaBucketAppliesToDispatchedId() {
+		RateLimiter limiter = new RateLimiter();
+		WebSocketSession session = new RemoteWebSocketSession(null,
+				"http://node", "alice");
+		limiter.add(session);
+
+		// Default media burst is 3
+		for (int i = 0; i < 3; i++) {
+			assertEquals(RateLimiter.Verdict.ACCEPT,
+					limiter.checkMessage(session, CallHandler.MSG_C2S.CALL));
+		}
+		assertEquals(RateLimiter.Verdict.DROP,
+				limiter.checkMessage(session, CallHandler.MSG_C2S.CALL));
+		assertEquals(RateLimiter.Verdict.ACCEPT,
+				limiter.checkMessage(session, CallHandler.MSG_C2S.STOP));
+
+		limiter.remove(session);
+		assertEquals(RateLimiter.Verdict.ACCEPT,
+				limiter.checkMessage(session, CallHandler.MSG_C2S.CALL));
+	}
+
+	@Test
+	public void oversizedFrameClosesSession() {
+		RateLimiter limiter = new RateLimiter();
+		WebSocketSession session = new RemoteWebSocketSession(null,
+				"http://node", "bob");
+		limiter.add(session);
+
+		StringBuilder frame = new StringBuilder();
+		while (frame.length() <= limiter.getMaxFrameBytes() / 3) {
+			frame.append('\u20ac'); // 3 bytes each in UTF-8
+		}
+		assertEquals(RateLimiter.Verdict.CLOSE,
+				limiter.check(session, frame.toString()));
+	}
+}
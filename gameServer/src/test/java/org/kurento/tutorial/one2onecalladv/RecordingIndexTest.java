@@ -0,0 +1,113 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+
+//-----------------------------------------------------------------------------
+// Lookup of the playable segment by phase or offset in RecordingIndex, and
+// the index files it writes next to the recordings.
+//-----------------------------------------------------------------------------
+public class RecordingIndexTest {
+
+	private RecordingIndex index;
+	private CallMediaPipeline call;
+
+	@Before
+	public void setUp() throws InterruptedException {
+		index = new RecordingIndex();
+		call = new CallMediaPipeline(new FakeKms().client(), "alice", "bob",
+				CallMediaPipeline.RecordingMode.DUAL, new CallSetupTrace(
+						"alice", "bob"));
+		call.record();
+		index.start(call);
+
+		index.markPhase(call, GameState.REVIEWING_IMAGE);
+		Thread.sleep(50);
+		index.markPhase(call, GameState.FIRST_INTERROGATION);
+		Thread.sleep(50);
+		index.markPhase(call, GameState.FIRST_RESPONSE);
+		Thread.sleep(50);
+		index.markPhase(call, GameState.SECOND_INTERROGATION);
+		awaitPhase("bob", GameState.SECOND_INTERROGATION);
+	}
+
+	@After
+	public void tearDown() {
+		index.stop();
+		for (String user : new String[] { "alice", "bob" }) {
+			indexFile(call.getRecordingUri(user, null)).delete();
+		}
+	}
+
+	@Test
+	public void offsetPlaysTheLastSegmentStartingBeforeIt() {
+		long first = offset("FIRST_INTERROGATION");
+		long second = offset("SECOND_INTERROGATION");
+		assertTrue(first + " < " + second, first < second);
+
+		assertEquals(call.getRecordingUri("alice", null),
+				index.find("alice", null, 0).getUri());
+		assertEquals(call.getRecordingUri("alice", null),
+				index.find("alice", null, first - 1).getUri());
+		assertEquals(call.getRecordingUri("alice", "FIRST_INTERROGATION"),
+				index.find("alice", null, first).getUri());
+		assertEquals(call.getRecordingUri("alice", "FIRST_INTERROGATION"),
+				index.find("alice", null, second - 1).getUri());
+		assertEquals(call.getRecordingUri("alice", "SECOND_INTERROGATION"),
+				index.find("alice", null, Long.MAX_VALUE).getUri());
+	}
+
+	@Test
+	public void phaseWithoutSegmentPlaysTheSegmentCoveringIt() {
+		RecordingIndex.Entry response = index.find("bob", "FIRST_RESPONSE", 0);
+		assertEquals(call.getRecordingUri("bob", "FIRST_INTERROGATION"),
+				response.getUri());
+		assertEquals(call.getRecordingUri("bob", null),
+				index.find("bob", "REVIEWING_IMAGE", 0).getUri());
+	}
+
+	@Test
+	public void unknownUserOrUnreachedPhaseIsNotFound() {
+		assertNull(index.find("carol", null, 0));
+		assertNull(index.find("alice", "POST_SURVEY", 0));
+	}
+
+	@Test
+	public void indexIsWrittenNextToEachRecording() {
+		assertTrue(indexFile(call.getRecordingUri("alice", null)).isFile());
+		assertTrue(indexFile(call.getRecordingUri("bob", null)).isFile());
+	}
+
+	private long offset(String phase) {
+		RecordingIndex.Entry entry = index.find("alice", phase, 0);
+		assertNotNull(phase, entry);
+		return entry.getOffsetMs();
+	}
+
+	private void awaitPhase(String user, GameState state)
+			throws InterruptedException {
+		for (int i = 0; i < 200; i++) {
+			RecordingIndex.Entry entry = index.find(user, state.name(), 0);
+			if (entry != null && entry.getUri().equals(
+					call.getRecordingUri(user, state.name()))) {
+				return;
+			}
+			Thread.sleep(5);
+		}
+		throw new AssertionError(state + " was not indexed for " + user);
+	}
+
+	private static File indexFile(String recording) {
+		return new File(recording.replaceFirst("^file://", "")
+				+ ".index.json");
+	}
+}
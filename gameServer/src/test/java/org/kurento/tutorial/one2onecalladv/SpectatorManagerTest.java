@@ -0,0 +1,126 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.web.socket.WebSocketSession;
+
+//-----------------------------------------------------------------------------
+// Viewer cap, endpoint cleanup and token checks of SpectatorManager, on a
+// CallMediaPipeline built against FakeKms.
+//-----------------------------------------------------------------------------
+public class SpectatorManagerTest {
+
+	private static final String[] ANSWERS = { "result-processOffer",
+			"result-processOffer" };
+
+	private FakeKms kms;
+	private CallMediaPipeline call;
+	private SpectatorManager spectators;
+
+	@Before
+	public void setUp() {
+		System.setProperty("spectators.max.per.match", "2");
+		System.setProperty("spectators.token", "observer");
+		kms = new FakeKms();
+		call = new CallMediaPipeline(kms.client(), "alice", "bob",
+				CallMediaPipeline.RecordingMode.DUAL, new CallSetupTrace(
+						"alice", "bob"));
+		spectators = new SpectatorManager();
+	}
+
+	@After
+	public void tearDown() {
+		System.clearProperty("spectators.max.per.match");
+		System.clearProperty("spectators.token");
+	}
+
+	@Test
+	public void capLimitsViewersPerMatch() {
+		WebSocketSession first = session("v1");
+		assertArrayEquals(ANSWERS, spectators.spectate(first, call, "a", "b"));
+		assertArrayEquals(ANSWERS,
+				spectators.spectate(session("v2"), call, "a", "b"));
+		assertNull(spectators.spectate(session("v3"), call, "a", "b"));
+		assertEquals(2, spectators.getActive());
+		assertEquals(1, spectators.getRejected());
+
+		spectators.stop(first);
+		assertArrayEquals(ANSWERS,
+				spectators.spectate(session("v3"), call, "a", "b"));
+		assertEquals(3, spectators.getTotal());
+	}
+
+	@Test
+	public void stopReleasesBothViews() {
+		WebSocketSession viewer = session("v1");
+		spectators.spectate(viewer, call, "a", "b");
+		assertTrue(kms.released.isEmpty());
+
+		spectators.stop(viewer);
+		assertEquals(2, kms.released.size());
+		assertEquals(0, spectators.getActive());
+
+		spectators.stop(viewer); // no-op once stopped
+		assertEquals(2, kms.released.size());
+	}
+
+	@Test
+	public void watchingAgainReplacesViews() {
+		WebSocketSession viewer = session("v1");
+		spectators.spectate(viewer, call, "a", "b");
+		spectators.spectate(viewer, call, "a", "b");
+		assertEquals(1, spectators.getActive());
+		assertEquals(2, kms.released.size());
+	}
+
+	@Test
+	public void refusedOfferFreesSlot() {
+		kms.failOperation = "processOffer";
+		try {
+			spectators.spectate(session("v1"), call, "a", "b");
+			fail("Offer accepted");
+		} catch (RuntimeException expected) {
+		}
+		assertEquals(0, spectators.getActive());
+		assertEquals(0, spectators.getTotal());
+		assertEquals(2, kms.released.size());
+
+		kms.failOperation = null;
+		assertArrayEquals(ANSWERS,
+				spectators.spectate(session("v2"), call, "a", "b"));
+		assertArrayEquals(ANSWERS,
+				spectators.spectate(session("v3"), call, "a", "b"));
+	}
+
+	@Test
+	public void endMatchDetachesItsViewers() throws IOException {
+		WebSocketSession viewer = session("v1");
+		viewer.close(); // drops the spectateEnd message
+		spectators.spectate(viewer, call, "a", "b");
+
+		spectators.endMatch(call);
+		assertEquals(0, spectators.getActive());
+	}
+
+	@Test
+	public void onlyTheObserverTokenIsAuthorized() {
+		assertTrue(spectators.isAuthorized("observer"));
+		assertFalse(spectators.isAuthorized("observe"));
+		assertFalse(spectators.isAuthorized(null));
+		assertEquals(2, spectators.getUnauthorized());
+	}
+
+	private static WebSocketSession session(String name) {
+		return new RemoteWebSocketSession(null, "http://node", name);
+	}
+}
@@ -0,0 +1,351 @@
+package org.kurento.tutorial.one2onecalladv;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.kurento.tutorial.one2onecalladv.TournamentScheduler.Match;
+import org.kurento.tutorial.one2onecalladv.UserSession.GameState;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketMessage;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+//-----------------------------------------------------------------------------
+// Roster validation and pairing generation of TournamentScheduler, and how
+// it runs rounds: staggered pipeline creation, byes and stopping.
+//-----------------------------------------------------------------------------
+public class TournamentSchedulerTest {
+
+	//-------------------------------------------------------------------------
+	// Records the calls the scheduler asks for instead of building media.
+	//-------------------------------------------------------------------------
+	static class TestCallHandler extends CallHandler {
+		final List<String> prepared = new CopyOnWriteArrayList<String>();
+		final List<Long> preparedAt = new CopyOnWriteArrayList<Long>();
+		final List<String> discarded = new CopyOnWriteArrayList<String>();
+		volatile boolean failPrepare;
+
+		@Override
+		public void prepareCall(String caller, String callee) {
+			if (failPrepare) {
+				throw new IllegalStateException("media server busy");
+			}
+			preparedAt.add(System.nanoTime());
+			prepared.add(caller + "-" + callee);
+		}
+
+		@Override
+		public void discardPreparedCall(String caller) {
+			discarded.add(caller);
+		}
+
+		@Override
+		public boolean isInCall(UserSession user) {
+			return false;
+		}
+
+		@Override
+		public void endCall(UserSession user) {
+		}
+	}
+
+	static class ReadyConnector extends KurentoConnector {
+		@Override
+		public boolean isReady() {
+			return true;
+		}
+	}
+
+	//-------------------------------------------------------------------------
+	// Socket keeping the messages sent to a player.
+	//-------------------------------------------------------------------------
+	static class Inbox extends RemoteWebSocketSession {
+		final List<JsonObject> messages = new CopyOnWriteArrayList<JsonObject>();
+
+		Inbox(String name) {
+			super(null, "http://node", name);
+		}
+
+		@Override
+		public void sendMessage(WebSocketMessage<?> message) throws IOException {
+			messages.add(new JsonParser().parse(
+					((TextMessage) message).getPayload()).getAsJsonObject());
+		}
+
+		List<String> ids() {
+			List<String> ids = new ArrayList<String>();
+			for (JsonObject message : messages) {
+				ids.add(message.get("id").getAsString());
+			}
+			return ids;
+		}
+	}
+
+	private TournamentScheduler scheduler;
+	private TestCallHandler calls;
+	private UserRegistry registry;
+	private final Map<String, Inbox> inboxes = new HashMap<String, Inbox>();
+
+	@Before
+	public void setUp() {
+		System.setProperty("tournament.stagger.ms", "30");
+		System.setProperty("tournament.break.sec", "600");
+		scheduler = new TournamentScheduler();
+		calls = new TestCallHandler();
+		registry = new UserRegistry();
+		ReflectionTestUtils.setField(scheduler, "callHandler", calls);
+		ReflectionTestUtils.setField(scheduler, "registry", registry);
+		ReflectionTestUtils.setField(scheduler, "kms", new ReadyConnector());
+		ReflectionTestUtils.setField(scheduler, "drain", new DrainManager());
+	}
+
+	@After
+	public void tearDown() {
+		scheduler.shutdown();
+		System.clearProperty("tournament.stagger.ms");
+		System.clearProperty("tournament.break.sec");
+	}
+
+	@Test
+	public void pipelinesAreBuiltOneStaggerApart() throws InterruptedException {
+		List<String> roster = register(6);
+		assertTrue(scheduler.start(roster, TournamentScheduler.Pairing.ROTATING,
+				1));
+		awaitMessages("p0", 1);
+		awaitMessages("p2", 1);
+
+		assertEquals(Arrays.asList("p0-p3", "p1-p4", "p2-p5"), calls.prepared);
+		for (int i = 1; i < calls.preparedAt.size(); i++) {
+			long gapMs = (calls.preparedAt.get(i) - calls.preparedAt
+					.get(i - 1)) / 1000000;
+			assertTrue("gap " + gapMs, gapMs >= 25);
+		}
+		// Each caller is moved on once its pipeline exists
+		assertEquals(Arrays.asList(CallHandler.MSG_S2C.NEXT_MATCH),
+				inboxes.get("p0").ids());
+		assertTrue(inboxes.get("p0").messages.get(0).get("caller")
+				.getAsBoolean());
+	}
+
+	@Test
+	public void failedPipelineSkipsMatch() throws InterruptedException {
+		calls.failPrepare = true;
+		register(2);
+		scheduler.start(Arrays.asList("p0", "p1"),
+				TournamentScheduler.Pairing.ROUND_ROBIN, 1);
+
+		Map<String, Object> round = awaitPlayedRound();
+		assertEquals(1, (int) matches(round).get("SKIPPED"));
+		assertFalse(inboxes.get("p0").ids().contains(
+				CallHandler.MSG_S2C.NEXT_MATCH));
+	}
+
+	@Test
+	public void byePlayerIsTold() throws InterruptedException {
+		register(3);
+		scheduler.start(Arrays.asList("p0", "p1", "p2"),
+				TournamentScheduler.Pairing.ROUND_ROBIN, 1);
+
+		// Round 1 of the circle method rests p0
+		awaitMessages("p0", 1);
+		JsonObject bye = inboxes.get("p0").messages.get(0);
+		assertEquals(CallHandler.MSG_S2C.ROUND_END, bye.get("id").getAsString());
+		assertEquals(1, bye.get("round").getAsInt());
+		assertTrue(bye.get("bye").getAsBoolean());
+	}
+
+	@Test
+	public void stopEndsTheRoundInProgress() throws InterruptedException {
+		register(4);
+		scheduler.start(Arrays.asList("p0", "p1", "p2", "p3"),
+				TournamentScheduler.Pairing.ROTATING, 0);
+		awaitMessages("p1", 1);
+		awaitMessages("p3", 1);
+
+		UserSession p0 = registry.getByName("p0");
+		UserSession p2 = registry.getByName("p2");
+		scheduler.onEnter(GameState.POST_SURVEY, p0, p2);
+		scheduler.stop();
+
+		Map<String, Object> status = scheduler.status();
+		assertEquals(false, status.get("running"));
+		Map<String, Object> round = awaitPlayedRound();
+		assertTrue(round.containsKey("durationMs"));
+		assertEquals(1, (int) matches(round).get("FINISHED"));
+		assertEquals(1, (int) matches(round).get("STOPPED"));
+
+		for (String name : Arrays.asList("p0", "p1", "p2", "p3")) {
+			awaitMessages(name, 2);
+			assertEquals(CallHandler.MSG_S2C.ROUND_END, inboxes.get(name).ids()
+					.get(1));
+		}
+		assertTrue(calls.discarded.containsAll(Arrays.asList("p0", "p1")));
+	}
+
+	@Test
+	public void rosterTrimsAndDropsDuplicates() {
+		assertEquals(Arrays.asList("alice", "bob", "carol"),
+				TournamentScheduler.roster(Arrays.asList(" alice", "bob ",
+						"alice", "carol", "bob")));
+	}
+
+	@Test
+	public void rosterRejectsBlankNames() {
+		for (String blank : new String[] { "", "  ", null }) {
+			try {
+				TournamentScheduler.roster(Arrays.asList("alice", blank));
+				fail("Accepted blank name '" + blank + "'");
+			} catch (IllegalArgumentException expected) {
+			}
+		}
+	}
+
+	@Test
+	public void roundRobinPairsEveryoneOnce() {
+		for (int n = 2; n <= 9; n++) {
+			List<String> roster = players(n);
+			List<List<Match>> rounds = TournamentScheduler.roundRobin(roster);
+
+			int expectedRounds = (n % 2 == 0) ? n - 1 : n;
+			assertEquals("rounds for " + n, expectedRounds, rounds.size());
+
+			Map<Set<String>, Integer> meetings = new HashMap<Set<String>, Integer>();
+			for (List<Match> round : rounds) {
+				assertEquals("matches per round for " + n, n / 2, round.size());
+				assertNoPlayerTwice(round);
+				for (Match match : round) {
+					Set<String> pair = new HashSet<String>(Arrays.asList(
+							match.caller, match.callee));
+					Integer count = meetings.get(pair);
+					meetings.put(pair, (count == null) ? 1 : count + 1);
+				}
+			}
+			assertEquals("pairs for " + n, n * (n - 1) / 2, meetings.size());
+			for (Map.Entry<Set<String>, Integer> entry : meetings.entrySet()) {
+				assertEquals(entry.getKey().toString(), 1,
+						(int) entry.getValue());
+			}
+		}
+	}
+
+	@Test
+	public void roundRobinGivesOddRosterByes() {
+		List<String> roster = players(5);
+		Map<String, Integer> byes = new HashMap<String, Integer>();
+		for (List<Match> round : TournamentScheduler.roundRobin(roster)) {
+			Set<String> resting = new HashSet<String>(roster);
+			for (Match match : round) {
+				resting.remove(match.caller);
+				resting.remove(match.callee);
+			}
+			assertEquals(1, resting.size());
+			String player = resting.iterator().next();
+			Integer count = byes.get(player);
+			byes.put(player, (count == null) ? 1 : count + 1);
+		}
+		assertEquals(5, byes.size()); // each player rests exactly once
+	}
+
+	@Test
+	public void rotatingMeetsEverySecondHalfPlayer() {
+		for (int n = 2; n <= 8; n += 2) {
+			List<String> roster = players(n);
+			int half = n / 2;
+			List<List<Match>> rounds = TournamentScheduler.rotating(roster);
+			assertEquals(half, rounds.size());
+
+			Set<String> pairs = new HashSet<String>();
+			for (List<Match> round : rounds) {
+				assertEquals(half, round.size());
+				assertNoPlayerTwice(round);
+				for (Match match : round) {
+					assertTrue(roster.indexOf(match.caller) < half);
+					assertTrue(roster.indexOf(match.callee) >= half);
+					assertTrue(pairs.add(match.caller + "-" + match.callee));
+				}
+			}
+			assertEquals(half * half, pairs.size());
+		}
+	}
+
+	@Test
+	public void rotatingGivesOddRosterByes() {
+		List<List<Match>> rounds = TournamentScheduler.rotating(players(5));
+		assertEquals(3, rounds.size());
+		for (List<Match> round : rounds) {
+			assertEquals(2, round.size());
+			assertNoPlayerTwice(round);
+		}
+	}
+
+	private List<String> register(int n) {
+		List<String> names = players(n);
+		ProtocolTrace trace = new ProtocolTrace(16, 0);
+		for (String name : names) {
+			Inbox inbox = new Inbox(name);
+			inboxes.put(name, inbox);
+			registry.register(new UserSession(inbox, name, trace));
+		}
+		return names;
+	}
+
+	private void awaitMessages(String name, int count)
+			throws InterruptedException {
+		Inbox inbox = inboxes.get(name);
+		for (int i = 0; i < 300 && inbox.messages.size() < count; i++) {
+			Thread.sleep(10);
+		}
+		assertTrue(name + " got " + inbox.ids(), inbox.messages.size() >= count);
+	}
+
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> awaitPlayedRound() throws InterruptedException {
+		for (int i = 0; i < 300; i++) {
+			List<Map<String, Object>> played = (List<Map<String, Object>>) scheduler
+					.status().get("played");
+			if (!played.isEmpty() && played.get(0).containsKey("durationMs")) {
+				return played.get(0);
+			}
+			Thread.sleep(10);
+		}
+		throw new AssertionError("No round completed");
+	}
+
+	@SuppressWarnings("unchecked")
+	private static Map<String, Integer> matches(Map<String, Object> round) {
+		return (Map<String, Integer>) round.get("matches");
+	}
+
+	private static List<String> players(int n) {
+		List<String> players = new ArrayList<String>();
+		for (int i = 0; i < n; i++) {
+			players.add("p" + i);
+		}
+		return players;
+	}
+
+	private static void assertNoPlayerTwice(List<Match> round) {
+		Set<String> seen = new HashSet<String>();
+		for (Match match : round) {
+			assertTrue(match.caller, seen.add(match.caller));
+			assertTrue(match.callee, seen.add(match.callee));
+		}
+	}
+}
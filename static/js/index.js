@@ -2,20 +2,22 @@
 // client-side logic for one2one call with recording and playback.
 //
 // Sets up a WebSocket with the Application Server.
-// Parses messages received from the server in ws.onmessage, which calls
+// Parses messages received from the server in onMessage, which calls
 // the appropriate handler function.
 // Provides, call, play, stop, register functions which are called by html 
 // elements.
 // Enables/disables html buttons based on call and registration states.
 //-----------------------------------------------------------------------------
 
-var ws = new WebSocket('ws://' + location.host + '/call');
+var ws = connect('ws://' + location.host + '/call');
 var videoInput;   // video tag element for local video stream in index.html
 var videoOutput;  // video tag element for remote video stream in index.html
 var directionsBox;
 var statusBox;
 var roleBox;
 var webRtcPeer;
+var calleeViewPeer; // second stream while spectating (see spectate)
+var phaseSeconds; // duration of the current timed game phase, from the server
 
 // "register"ing is synonomous with being online, and does not persist between
 // sessions.  Each time a user comes to the website, he will need to register. 
@@ -43,7 +45,10 @@ var STATES = {
 	
 	POST_CALL 				: 'POST_CALL',
 	PLAY_REQUEST 			: 'PLAY_REQUEST', // previously DISABLED
-	IN_PLAYBACK  			: 'IN_PLAYBACK'
+	IN_PLAYBACK  			: 'IN_PLAYBACK',
+
+	SPECTATE_REQUEST		: 'SPECTATE_REQUEST',
+	SPECTATING				: 'SPECTATING'
 }
 
 var clientState = STATES.NOT_REGISTERED;
@@ -74,6 +79,11 @@ var MSG_S2C = {
 	START_SECOND_INT	: 'startSecondInterrogation',
 	GET_SECOND_DECISION	: 'getSecondDecision',
 	START_POST_GAME		: 'startPostGame',
+	GET_STATS			: 'getStats',
+	NEXT_MATCH			: 'nextMatch',
+	ROUND_END			: 'roundEnd',
+	SPECTATE_RESPONSE	: 'spectateResponse',
+	SPECTATE_END		: 'spectateEnd',
 	MSG_S2C_END			: 'MSG_S2C_END'
 }
 
@@ -89,9 +99,23 @@ var MSG_C2S = {
 	START_GAME			: 'startGame',
 	FIRST_DECISION		: 'firstDecision',
 	SECOND_DECISION		: 'secondDecision',
+	STATS				: 'stats',
+	SPECTATE			: 'spectate',
+	STOP_SPECTATE		: 'stopSpectate',
 	MSG_C2S_END			: 'MSG_C2S_END'
 }
 
+//---------------------------------------------------------------------
+// Human readable phase duration, e.g. "30 seconds" or "2 minutes".
+//---------------------------------------------------------------------
+function durationText(seconds) {
+	if (seconds >= 60 && seconds % 60 == 0) {
+		var minutes = seconds / 60;
+		return minutes + (minutes == 1 ? ' minute' : ' minutes');
+	}
+	return seconds + (seconds == 1 ? ' second' : ' seconds');
+}
+
 //---------------------------------------------------------------------
 // Based on the registerState, disables or enables the register button
 //---------------------------------------------------------------------
@@ -104,6 +128,7 @@ function setClientState(nextState) {
 		$('#confirmVideo').attr('disabled', true);
 		$('#startGame').attr('disabled', true);
 		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
 		
 		directionsBox.value = 
 			'Please type a name into the name box and click login to continue';
@@ -117,29 +142,34 @@ function setClientState(nextState) {
 	case STATES.REGISTERED:
 		$('#register').attr('disabled', true);
 		$('#call').attr('disabled', false);
+		$('#spectate').attr('disabled', false);
 		directionsBox.value = 
 		    'Please enter a peer name and click connect'; 
 		break;
 	case STATES.CALLING:
 		directionsBox.value = 'Attempting call'; 
 		$('#call').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
 		break;
 	case STATES.INCOMING:
 		directionsBox.value = 'Incoming call'; 
 		$('#call').attr('disabled', true);
 		$('#terminate').attr('disabled', true);
 		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
 		break;	
 	case STATES.PLAY_REQUEST:
 		directionsBox.value = 'Waiting for play request response'; 
 		$('#call').attr('disabled', true);
 		$('#terminate').attr('disabled', true);
 		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
 		break;
 	case STATES.IN_CALL:
 		$('#call').attr('disabled', true);
 		$('#terminate').attr('disabled', false);
 		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
 		$('#confirmVideo').attr('disabled', false);
 		directionsBox.value = 
 		    'Please click confirm when peer video begins'; 
@@ -163,25 +193,29 @@ function setClientState(nextState) {
 		if(clientRole == ROLES.DESCRIBER) {
 			document.getElementById("describerImage").style.opacity = "1";
 			directionsBox.value = 
-				'You have 30 seconds to memorize this image\'s details'; 
+				'You have ' + durationText(phaseSeconds) +
+				' to memorize this image\'s details'; 
 		}
 		else {
 			directionsBox.value = 
-				'Describer has 30 seconds to view their image.'; 			
+				'Describer has ' + durationText(phaseSeconds) +
+				' to view their image.'; 			
 		}
 		document.getElementById("videoOutput").style.opacity = "0";
 		break;
 	case STATES.FIRST_INTERROGATION:
 		document.getElementById("describerImage").style.opacity = "0";
 		document.getElementById("videoOutput").style.opacity = "1";
-		directionsBox.value = 'You have two minutes of questioning.'; 
+		directionsBox.value = 'You have ' + durationText(phaseSeconds) +
+				' of questioning.'; 
 		break;
 	case STATES.FIRST_RESPONSE:
 		directionsBox.value = 
 				'INTERROGATOR should now log their first decision'; 
 		break;
 	case STATES.SECOND_INTERROGATION:
-		directionsBox.value = 'You have two more minutes of questioning.'; 
+		directionsBox.value = 'You have another ' +
+				durationText(phaseSeconds) + ' of questioning.'; 
 		break;
 	case STATES.SECOND_RESPONSE:
 		directionsBox.value = 
@@ -194,12 +228,28 @@ function setClientState(nextState) {
 		$('#call').attr('disabled', false);
 		$('#terminate').attr('disabled', true);
 		$('#play').attr('disabled', false);
+		$('#spectate').attr('disabled', false);
 		break;
 	case STATES.IN_PLAYBACK:
 		$('#call').attr('disabled', true);
 		$('#terminate').attr('disabled', false);
 		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
 		break;	
+	case STATES.SPECTATE_REQUEST:
+		directionsBox.value = 'Waiting for spectate request response'; 
+		$('#call').attr('disabled', true);
+		$('#terminate').attr('disabled', true);
+		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
+		break;
+	case STATES.SPECTATING:
+		directionsBox.value = 'Watching a live match'; 
+		$('#call').attr('disabled', true);
+		$('#terminate').attr('disabled', false);
+		$('#play').attr('disabled', true);
+		$('#spectate').attr('disabled', true);
+		break;
 		
 	default:
 		return;
@@ -230,7 +280,13 @@ window.onbeforeunload = function() {
 //--------------------------------------------------------------------
 // WebSocket msg handler for incoming messages from application server 
 //--------------------------------------------------------------------
-ws.onmessage = function(message) {
+function connect(url) {
+	var socket = new WebSocket(url);
+	socket.onmessage = onMessage;
+	return socket;
+}
+
+function onMessage(message) {
 	var parsedMessage = JSON.parse(message.data);
 	console.info('Received message: ' + message.data);
 
@@ -262,9 +318,11 @@ ws.onmessage = function(message) {
 		break;
 	case MSG_S2C.START_REVIEWING_IMG:
 		document.getElementById('describerImage').src = parsedMessage.src;
+		phaseSeconds = parsedMessage.seconds;
 		setClientState(STATES.REVIEWING_IMAGE);
 		break;
 	case MSG_S2C.START_FIRST_INT:
+		phaseSeconds = parsedMessage.seconds;
 		setClientState(STATES.FIRST_INTERROGATION);
 		break;
 	case MSG_S2C.GET_FIRST_DECISION:
@@ -275,12 +333,31 @@ ws.onmessage = function(message) {
 		alert(parsedMessage.hint);
 		break;
 	case MSG_S2C.START_SECOND_INT:
+		phaseSeconds = parsedMessage.seconds;
 		setClientState(STATES.SECOND_INTERROGATION);
 		break;
 	case MSG_S2C.GET_SECOND_DECISION:
 		setClientState(STATES.SECOND_RESPONSE);
 		getDecision(false);
 		break;
+	case MSG_S2C.START_POST_GAME:
+		setClientState(STATES.POST_SURVEY);
+		break;
+	case MSG_S2C.GET_STATS:
+		sendStats();
+		break;
+	case MSG_S2C.NEXT_MATCH:
+		nextMatch(parsedMessage);
+		break;
+	case MSG_S2C.ROUND_END:
+		roundEnd(parsedMessage);
+		break;
+	case MSG_S2C.SPECTATE_RESPONSE:
+		spectateResponse(parsedMessage);
+		break;
+	case MSG_S2C.SPECTATE_END:
+		spectateEnd();
+		break;
 		
 	default:
 		console.error('Unrecognized message', parsedMessage);
@@ -294,6 +371,8 @@ function resgisterResponse(message) {
 		document.getElementById("directionsBox").value = 
 	      'Please type a peer name into the Peer box and click Connect to call';
 		document.getElementById('peer').focus();
+	} else if (message.redirect) {
+		redirect(message.redirect);
 	} else {
 		setClientState(STATES.NOT_REGISTERED);
 		var errorMessage = message.message ? message.message : 'Unknown reason for register rejection.';
@@ -303,13 +382,30 @@ function resgisterResponse(message) {
 	}
 }
 
+//--------------------------------------------------------------------
+// The server is draining and named another one (its http(s) base URL):
+// moves the WebSocket there and registers again under the same name, so
+// the user can carry on from that server.
+//--------------------------------------------------------------------
+function redirect(url) {
+	console.info('Server draining, reconnecting to ' + url);
+	ws.onmessage = null;
+	ws.close();
+	ws = connect(url.replace(/^http/, 'ws').replace(/\/$/, '') + '/call');
+	ws.onopen = function() {
+		register();
+	};
+}
+
 //--------------------------------------------------------------------
 function callResponse(message) {
 	if (message.response != 'accepted') {
 		console.info('Call not accepted by peer. Closing call');
 		stop();
 		setClientState(STATES.REGISTERED);
-		if (message.message) {
+		if (message.redirect) {
+			redirect(message.redirect);
+		} else if (message.message) {
 			alert(message.message);
 		}
 	} else {
@@ -363,7 +459,11 @@ function incomingCall(message) {
 
 	setClientState(STATES.INCOMING);
 
-	if (confirm('User ' + message.from
+	// Calls scheduled by a tournament are accepted without asking
+	var scheduled = (message.from == scheduledPeer)
+			&& (Date.now() <= scheduledUntil);
+	scheduledPeer = null;
+	if (scheduled || confirm('User ' + message.from
 			+ ' is calling you. Do you accept the call?')) {
 		showSpinner(videoInput, videoOutput);
 
@@ -415,11 +515,16 @@ function stop(message) {
 	else if(clientState == STATES.IN_CALL) {
 		stopMessageId = MSG_C2S.STOP;
 	}
+	else if( (clientState == STATES.SPECTATING) ||
+			(clientState == STATES.SPECTATE_REQUEST) ) {
+		stopMessageId = MSG_C2S.STOP_SPECTATE;
+	}
 	else {
 		alert("ERROR: Unexpected STOP.");
 		stopMessageId = MSG_C2S.STOP;
 	}
 	setClientState(STATES.POST_CALL);
+	disposeCalleeView();
 	if (webRtcPeer) {
 		webRtcPeer.dispose();
 		webRtcPeer = null;
@@ -435,6 +540,55 @@ function stop(message) {
 	document.getElementById('videoSmall').style.display = 'block';
 }
 
+//-----------------------------------------------------------------------
+// Tournament: the server moved us to our next match and has already
+// released the previous call, so it is left without a "stop" message.
+// The caller calls the new peer; the callee waits for that call, which
+// is accepted without asking if it comes within acceptSec seconds and
+// before the round ends.
+//-----------------------------------------------------------------------
+var scheduledPeer = null;
+var scheduledUntil = 0;
+
+function nextMatch(message) {
+	dropScheduledCall();
+
+	document.getElementById('peer').value = message.peer;
+	document.getElementById("directionsBox").value = 
+		'Round ' + message.round + ': your next match is with ' + message.peer;
+	if (message.caller) {
+		scheduledPeer = null;
+		call();
+	} else {
+		scheduledPeer = message.peer;
+		scheduledUntil = Date.now() + message.acceptSec * 1000;
+	}
+}
+
+//-----------------------------------------------------------------------
+// The round is over. A bye means we have no match in this one: the call
+// of the previous round was released by the server, so it is dropped
+// without a "stop" message.
+//-----------------------------------------------------------------------
+function roundEnd(message) {
+	scheduledPeer = null;
+	if (message.bye) {
+		dropScheduledCall();
+		document.getElementById("directionsBox").value = 
+			'Round ' + message.round + ': you sit this round out';
+	}
+}
+
+function dropScheduledCall() {
+	if (webRtcPeer) {
+		webRtcPeer.dispose();
+		webRtcPeer = null;
+	}
+	hideSpinner(videoInput, videoOutput);
+	document.getElementById('videoSmall').style.display = 'block';
+	setClientState(STATES.POST_CALL);
+}
+
 //=========================================================================
 
 
@@ -515,6 +669,72 @@ function play() {
 }
 
 
+//--------------------------------------------------------------------
+// Watches the live match of the player named in the peer box. The
+// server only accepts registered users holding the observer token.
+//--------------------------------------------------------------------
+function spectate() {
+	var peer = document.getElementById('peer').value;
+	if (peer == '') {
+		window.alert("You must insert the name of a player in the match to be watched (field 'Peer')");
+		document.getElementById('peer').focus();
+		return;
+	}
+
+	setClientState(STATES.SPECTATE_REQUEST);
+	showSpinner(videoInput, videoOutput);
+
+	// One receive-only stream per player, forwarded as is by the server:
+	// the caller in the big video box, the callee in the small one
+	webRtcPeer = kurentoUtils.WebRtcPeer.startRecvOnly(videoOutput, 
+	    function(callerOfferSdp) {
+			calleeViewPeer = kurentoUtils.WebRtcPeer.startRecvOnly(videoInput, 
+			    function(calleeOfferSdp) {
+					var message = {
+						id : MSG_C2S.SPECTATE,
+						user : peer,
+						token : document.getElementById('token').value,
+						sdpOfferCaller : callerOfferSdp,
+						sdpOfferCallee : calleeOfferSdp
+					};
+					sendMessage(message);
+				});
+		});
+}
+
+//--------------------------------------------------------------------
+function spectateResponse(message) {
+	if (message.response != 'accepted') {
+		alert(message.message);
+		spectateEnd();
+	} else {
+		setClientState(STATES.SPECTATING);
+		webRtcPeer.processSdpAnswer(message.sdpAnswerCaller);
+		calleeViewPeer.processSdpAnswer(message.sdpAnswerCallee);
+	}
+}
+
+//--------------------------------------------------------------------
+function disposeCalleeView() {
+	if (calleeViewPeer) {
+		calleeViewPeer.dispose();
+		calleeViewPeer = null;
+	}
+}
+
+//--------------------------------------------------------------------
+// The match being watched is over, or the request was refused.
+//--------------------------------------------------------------------
+function spectateEnd() {
+	if (webRtcPeer) {
+		webRtcPeer.dispose();
+		webRtcPeer = null;
+	}
+	disposeCalleeView();
+	setClientState(STATES.POST_CALL);
+	hideSpinner(videoInput, videoOutput);
+}
+
 //--------------------------------------------------------------------
 function sendMessage(message) {
 	var jsonMessage = JSON.stringify(message);
@@ -619,6 +839,48 @@ function getDecision(firstDecision) {
 	sendMessage(response);
 }
 
+//-----------------------------------------------------------------------
+// Answers the server's periodic stats request with the quality of the
+// video received from the peer (cumulative packet counters, jitter,
+// round-trip time, and bitrate since the previous report).
+//-----------------------------------------------------------------------
+var lastStatsBytes = 0;
+var lastStatsTime = 0;
+
+function sendStats() {
+	if (!webRtcPeer || !webRtcPeer.pc || !webRtcPeer.pc.getStats) {
+		return;
+	}
+	webRtcPeer.pc.getStats(null).then(function(report) {
+		var stats = {
+			id : MSG_C2S.STATS,
+			packetsLost : 0,
+			packetsReceived : 0,
+			jitterMs : 0,
+			rttMs : 0,
+			kbps : 0
+		};
+		report.forEach(function(entry) {
+			if (entry.type == 'inbound-rtp' && entry.kind == 'video') {
+				stats.packetsLost = entry.packetsLost;
+				stats.packetsReceived = entry.packetsReceived;
+				stats.jitterMs = entry.jitter * 1000;
+				if (entry.timestamp > lastStatsTime && lastStatsTime > 0
+						&& entry.bytesReceived >= lastStatsBytes) {
+					stats.kbps = 8 * (entry.bytesReceived - lastStatsBytes)
+							/ (entry.timestamp - lastStatsTime);
+				}
+				lastStatsBytes = entry.bytesReceived;
+				lastStatsTime = entry.timestamp;
+			} else if (entry.type == 'candidate-pair' && entry.nominated
+					&& entry.currentRoundTripTime !== undefined) {
+				stats.rttMs = entry.currentRoundTripTime * 1000;
+			}
+		});
+		sendMessage(stats);
+	});
+}
+
 //--------------------------------------------------------------------
 // Lightbox utility (to display media pipeline image in a modal dialog)
 //--------------------------------------------------------------------